@@ -0,0 +1,97 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic user files for the benchmarks
+ */
+
+public final class BenchmarkData {
+
+    public static final String PASSWORD = "benchmark-password";
+
+    private static final String[] FIRST_NAMES = {"Jon", "Arya", "Sansa", "Tyrion", "Cersei", "Jaime", "Daenerys", "Ygritte"};
+    private static final String[] LAST_NAMES = {"Snow", "Stark", "Lannister", "Targaryen", "Baratheon", "Greyjoy", "Tully"};
+
+    private BenchmarkData() {
+    }
+
+    public static String username(int i) {
+        return "user" + i + "@bench.local";
+    }
+
+    public static User user(int i, String passwordHash) {
+        User user = new User();
+        user.setUsername(username(i));
+        user.setFirstName(FIRST_NAMES[i % FIRST_NAMES.length] + i);
+        user.setLastName(LAST_NAMES[i % LAST_NAMES.length]);
+        user.setEmail(username(i));
+        user.setPasswordHash(passwordHash);
+        user.setFavouriteLine("Winter is coming");
+        return user;
+    }
+
+    /**
+     * Write a user file in the JSON array layout, in JSON lines when the path ends with .jsonl or in the
+     * binary snapshot format when it ends with .bin
+     */
+    public static Path writeUsers(Path path, int count) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        String passwordHash = HashUtil.hashString(PASSWORD);
+        if (SnapshotFormat.fromPath(path) == SnapshotFormat.BINARY) {
+            List<User> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) users.add(user(i, passwordHash));
+            BinaryUserSnapshot.write(path, users);
+            return path;
+        }
+        boolean jsonLines = path.toString().endsWith(UserFileLoader.JSON_LINES_EXTENSION);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            if (jsonLines) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(objectMapper.writeValueAsString(user(i, passwordHash)));
+                    writer.newLine();
+                }
+                return path;
+            }
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(writer)) {
+                generator.writeStartArray();
+                for (int i = 0; i < count; i++) {
+                    objectMapper.writeValue(generator, user(i, passwordHash));
+                }
+                generator.writeEndArray();
+            }
+        }
+        return path;
+    }
+
+    public static FileUserRepository repository(Path directory, int count, boolean journalEnabled) throws IOException {
+        Path file = writeUsers(directory.resolve("userDB.json"), count);
+        return new FileUserRepository(file.toString(), journalEnabled, FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL,
+                SnapshotFormat.JSON, UserStore.Type.MAP, false);
+    }
+
+    public static ShardedUserRepository shardedRepository(Path directory, int count, boolean journalEnabled,
+                                                          int shardCount, DurabilityPolicy.Mode durability) throws IOException {
+        Path file = writeUsers(directory.resolve("userDB.json"), count);
+        return new ShardedUserRepository(file, shardCount, SnapshotFormat.JSON, journalEnabled,
+                FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL, new DurabilityPolicy(durability,
+                DurabilityPolicy.DEFAULT_MAX_FLUSH_INTERVAL_MILLIS, DurabilityPolicy.DEFAULT_MAX_PENDING_WRITES),
+                UserStore.Type.MAP, ClusterPolicy.STANDALONE);
+    }
+
+    public static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) return;
+        Files.walk(directory)
+                .sorted((a, b) -> b.getNameCount() - a.getNameCount())
+                .forEach(path -> path.toFile().delete());
+    }
+}
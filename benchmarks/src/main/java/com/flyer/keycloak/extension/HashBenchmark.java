@@ -0,0 +1,52 @@
+package com.flyer.keycloak.extension;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing and verification throughput
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"pbkdf2-sha256:27500", "pbkdf2-sha256:10000", "sha256:1"})
+    public String scheme;
+
+    private String storedHash;
+
+    @Setup
+    public void setUp() {
+        String[] parts = scheme.split(":");
+        HashUtil.configure(parts[0], Integer.parseInt(parts[1]));
+        storedHash = HashUtil.hashString(BenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public String hashString() {
+        return HashUtil.hashString(BenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return HashUtil.isValid(BenchmarkData.PASSWORD, storedHash);
+    }
+}
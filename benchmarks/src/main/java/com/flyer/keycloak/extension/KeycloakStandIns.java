@@ -0,0 +1,201 @@
+package com.flyer.keycloak.extension;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lightweight in-process stand-ins for the Keycloak runtime the provider talks to
+ */
+
+public final class KeycloakStandIns {
+
+    private KeycloakStandIns() {
+    }
+
+    public static ComponentModel component(String id) {
+        ComponentModel model = new ComponentModel();
+        model.setId(id);
+        model.setName(id);
+        model.setProviderId("file-user-storage-provider");
+        return model;
+    }
+
+    public static RealmModel realm(String id) {
+        return proxy(RealmModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return id;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    public static KeycloakSession session(UserFederatedStorageProvider federatedStorage, TransactionManager transactionManager) {
+        KeycloakTransactionManager manager = transactionManager.proxy();
+        return proxy(KeycloakSession.class, (method, args) -> {
+            switch (method) {
+                case "userFederatedStorage":
+                    return federatedStorage;
+                case "getTransactionManager":
+                    return manager;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Federated storage keeping attributes in memory and reporting a configurable number of stored users
+     */
+    public static class FederatedStorage {
+
+        private final List<String> storedUsers;
+        private final Map<String, MultivaluedHashMap<String, String>> attributes = new ConcurrentHashMap<>();
+
+        public FederatedStorage(int storedUserCount) {
+            this.storedUsers = new ArrayList<>(storedUserCount);
+            for (int i = 0; i < storedUserCount; i++) {
+                storedUsers.add("f:federated:" + i);
+            }
+        }
+
+        private MultivaluedHashMap<String, String> attributesOf(String userId) {
+            return attributes.computeIfAbsent(userId, key -> new MultivaluedHashMap<>());
+        }
+
+        @SuppressWarnings("unchecked")
+        public UserFederatedStorageProvider proxy() {
+            return KeycloakStandIns.proxy(UserFederatedStorageProvider.class, (method, args) -> {
+                switch (method) {
+                    case "getStoredUsers": {
+                        int first = Math.min((Integer) args[1], storedUsers.size());
+                        int max = (Integer) args[2];
+                        return new ArrayList<>(storedUsers.subList(first, (int) Math.min(storedUsers.size(), (long) first + max)));
+                    }
+                    case "getStoredUsersCount":
+                        return storedUsers.size();
+                    case "getAttributes": {
+                        MultivaluedHashMap<String, String> stored = attributes.get((String) args[1]);
+                        return stored == null ? new MultivaluedHashMap<>() : new MultivaluedHashMap<>(stored);
+                    }
+                    case "setSingleAttribute":
+                        attributesOf((String) args[1]).putSingle((String) args[2], (String) args[3]);
+                        return null;
+                    case "setAttribute":
+                        attributesOf((String) args[1]).put((String) args[2], new ArrayList<>((List<String>) args[3]));
+                        return null;
+                    case "removeAttribute":
+                        attributesOf((String) args[1]).remove((String) args[2]);
+                        return null;
+                    case "getGroups":
+                    case "getRoleMappings":
+                    case "getRequiredActions":
+                        return Collections.emptySet();
+                    default:
+                        return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Transaction manager running enlisted transactions in Keycloak's order: prepare, main, after completion
+     */
+    public static class TransactionManager {
+
+        private final List<KeycloakTransaction> prepare = new ArrayList<>();
+        private final List<KeycloakTransaction> main = new ArrayList<>();
+        private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        private final List<List<KeycloakTransaction>> phases = Arrays.asList(prepare, main, afterCompletion);
+
+        KeycloakTransactionManager proxy() {
+            return KeycloakStandIns.proxy(KeycloakTransactionManager.class, (method, args) -> {
+                switch (method) {
+                    case "enlistPrepare":
+                        return enlist(prepare, args[0]);
+                    case "enlist":
+                        return enlist(main, args[0]);
+                    case "enlistAfterCompletion":
+                        return enlist(afterCompletion, args[0]);
+                    case "isActive":
+                        return true;
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private Object enlist(List<KeycloakTransaction> transactions, Object transaction) {
+            KeycloakTransaction keycloakTransaction = (KeycloakTransaction) transaction;
+            keycloakTransaction.begin();
+            transactions.add(keycloakTransaction);
+            return null;
+        }
+
+        public void commit() {
+            for (List<KeycloakTransaction> transactions : phases) {
+                for (KeycloakTransaction transaction : transactions) {
+                    transaction.commit();
+                }
+                transactions.clear();
+            }
+        }
+
+        public void rollback() {
+            for (List<KeycloakTransaction> transactions : phases) {
+                for (KeycloakTransaction transaction : transactions) {
+                    transaction.rollback();
+                }
+                transactions.clear();
+            }
+        }
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(KeycloakStandIns.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return type.getSimpleName() + " stand-in";
+                    }
+                    Object result = handler.invoke(method.getName(), args);
+                    return result != null ? result : defaultValue(method.getReturnType());
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0d;
+        if (type == float.class) return 0f;
+        if (type == char.class) return (char) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        return 0;
+    }
+}
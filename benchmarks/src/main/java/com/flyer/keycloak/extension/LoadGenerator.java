@@ -0,0 +1,213 @@
+package com.flyer.keycloak.extension;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End-to-end load against FileUserStorageProvider, one simulated Keycloak session per operation
+ */
+
+public class LoadGenerator {
+
+    enum Operation {
+        LOGIN, UPDATE, SEARCH
+    }
+
+    private static final int SEARCH_PAGE_SIZE = 20;
+
+    private final int userCount;
+    private final ShardedUserRepository repository;
+    private final UserAdapterCache adapterCache;
+    private final ProviderMetrics metrics = new ProviderMetrics();
+    private final UserFederatedStorageProvider federatedStorage;
+    private final ComponentModel component;
+    private final RealmModel realm;
+    private final int[] mix; // cumulative weights, by operation ordinal
+    private volatile Map<Operation, LatencyHistogram> histograms;
+    private final AtomicLong failures = new AtomicLong();
+    private long end; // nanoTime at which workers stop, set before they are released
+
+    private LoadGenerator(int userCount, ShardedUserRepository repository, int[] weights) {
+        this.userCount = userCount;
+        this.repository = repository;
+        this.adapterCache = new UserAdapterCache(UserAdapterCache.DEFAULT_MAX_ENTRIES, UserAdapterCache.DEFAULT_TTL_SECONDS);
+        repository.addChangeListener(adapterCache);
+        this.federatedStorage = new KeycloakStandIns.FederatedStorage(0).proxy();
+        this.component = KeycloakStandIns.component("load-component");
+        this.component.put(FileUserStorageProviderFactory.FILE_ATTRIBUTES, "nickname");
+        this.realm = KeycloakStandIns.realm("load-realm");
+        this.mix = new int[weights.length];
+        for (int i = 0, sum = 0; i < weights.length; i++) mix[i] = sum += weights[i];
+        this.histograms = newHistograms();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Options are given as name=value: " + arg);
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        boolean virtual = Boolean.parseBoolean(options.getOrDefault("virtual", "false"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int shards = Integer.parseInt(options.getOrDefault("shards", "1"));
+        DurabilityPolicy.Mode durability = DurabilityPolicy.Mode.parse(options.getOrDefault("durability", "sync-fsync"));
+        String[] weights = options.getOrDefault("mix", "80/15/5").split("/");
+        if (weights.length != Operation.values().length) throw new IllegalArgumentException("mix needs login/update/search weights");
+        int[] mix = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) mix[i] = Integer.parseInt(weights[i].trim());
+        Logger.getLogger("").setLevel(Level.parse(options.getOrDefault("logLevel", "WARNING")));
+        if (options.containsKey("hashIterations")) {
+            HashUtil.configure(Pbkdf2PasswordHasher.ALGORITHM, Integer.parseInt(options.get("hashIterations")));
+        }
+
+        System.out.printf("%d %s threads, mix login/update/search %s, %d shard(s), %s, %d s after %d s warm-up%n", threads,
+                virtual ? "virtual" : "platform", String.join("/", weights), shards, durability, seconds, warmup);
+        System.out.printf("%-9s %-7s %10s %10s %10s %10s %10s %10s%n", "users", "op", "count", "ops/s", "p50 us", "p99 us",
+                "p999 us", "max us");
+        for (String users : options.getOrDefault("users", "1000,10000,100000,1000000").split(",")) {
+            int userCount = Integer.parseInt(users.trim());
+            Path directory = Files.createTempDirectory("load-generator");
+            try (ShardedUserRepository repository = BenchmarkData.shardedRepository(directory, userCount, true, shards, durability)) {
+                new LoadGenerator(userCount, repository, mix).run(threads, virtual, warmup, seconds);
+            } finally {
+                BenchmarkData.deleteRecursively(directory);
+            }
+        }
+    }
+
+    private void run(int threads, boolean virtual, int warmupSeconds, int seconds) throws InterruptedException {
+        ExecutorService workers = virtual ? virtualThreadExecutor() : null;
+        if (workers == null) {
+            if (virtual) System.out.println("Virtual threads are not available on this JDK, using platform threads");
+            AtomicInteger threadCount = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "load-generator-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // the clock starts once every worker has been submitted, which takes a while with many threads on few cores
+        CountDownLatch released = new CountDownLatch(1);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end) runOnce();
+            });
+        }
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        released.countDown();
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, warmupEnd - System.nanoTime()));
+        histograms = newHistograms();
+        failures.set(0);
+        long start = System.nanoTime();
+        workers.shutdown();
+        workers.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() where the JDK has it; this module is built for Java 8
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private void runOnce() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(mix[mix.length - 1]);
+        Operation operation = Operation.LOGIN;
+        while (pick >= mix[operation.ordinal()]) operation = Operation.values()[operation.ordinal() + 1];
+        String username = BenchmarkData.username(random.nextInt(userCount));
+
+        LatencyHistogram histogram = histograms.get(operation);
+        long start = System.nanoTime();
+        KeycloakStandIns.TransactionManager transactionManager = new KeycloakStandIns.TransactionManager();
+        KeycloakSession session = KeycloakStandIns.session(federatedStorage, transactionManager);
+        FileUserStorageProvider provider = new FileUserStorageProvider(session, component, repository, adapterCache, metrics);
+        try {
+            switch (operation) {
+                case LOGIN: {
+                    UserModel user = provider.getUserByUsername(username, realm);
+                    if (user == null || !provider.isValid(realm, user, UserCredentialModel.password(BenchmarkData.PASSWORD))) {
+                        failures.incrementAndGet();
+                    }
+                    break;
+                }
+                case UPDATE: {
+                    UserModel user = provider.getUserByUsername(username, realm);
+                    if (user == null) {
+                        failures.incrementAndGet();
+                        break;
+                    }
+                    user.setSingleAttribute("nickname", "n" + random.nextInt(1000));
+                    break;
+                }
+                case SEARCH:
+                    if (provider.searchForUser(username, realm, 0, SEARCH_PAGE_SIZE).isEmpty()) failures.incrementAndGet();
+                    break;
+            }
+            transactionManager.commit();
+        } catch (RuntimeException e) {
+            transactionManager.rollback();
+            failures.incrementAndGet();
+        } finally {
+            provider.close();
+        }
+        histogram.recordSince(start);
+    }
+
+    private static Map<Operation, LatencyHistogram> newHistograms() {
+        Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) histograms.put(operation, new LatencyHistogram());
+        return histograms;
+    }
+
+    private void report(double elapsedSeconds) {
+        List<String> lines = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<Operation, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            total += histogram.getCount();
+            if (histogram.getCount() == 0) continue;
+            lines.add(String.format("%-9d %-7s %10d %10.0f %10.0f %10.0f %10.0f %10.0f", userCount,
+                    entry.getKey().name().toLowerCase(), histogram.getCount(), histogram.getCount() / elapsedSeconds,
+                    histogram.getP50Micros(), histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+        }
+        lines.add(String.format("%-9d %-7s %10d %10.0f %43s", userCount, "all", total, total / elapsedSeconds,
+                failures.get() == 0 ? "" : failures.get() + " failed"));
+        lines.forEach(System.out::println);
+    }
+}
@@ -0,0 +1,101 @@
+package com.flyer.keycloak.extension;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileUserStorageProvider entry points driven through in-process Keycloak stand-ins
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderBenchmark {
+
+    @Param({"100000"})
+    public int userCount;
+
+    @Param({"0", "100000"})
+    public int federatedUserCount;
+
+    @Param({"50"})
+    public int pageSize;
+
+    private Path directory;
+    private FileUserRepository repository;
+    private UserAdapterCache adapterCache;
+    private final ProviderMetrics metrics = new ProviderMetrics();
+    private UserFederatedStorageProvider federatedStorage;
+    private ComponentModel component;
+    private RealmModel realm;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("provider-benchmark");
+        repository = BenchmarkData.repository(directory, userCount, true);
+        adapterCache = new UserAdapterCache(UserAdapterCache.DEFAULT_MAX_ENTRIES, UserAdapterCache.DEFAULT_TTL_SECONDS);
+        federatedStorage = new KeycloakStandIns.FederatedStorage(federatedUserCount).proxy();
+        component = KeycloakStandIns.component("benchmark-component");
+        realm = KeycloakStandIns.realm("benchmark-realm");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.deleteRecursively(directory);
+    }
+
+    private FileUserStorageProvider newProvider() {
+        KeycloakSession session = KeycloakStandIns.session(federatedStorage, new KeycloakStandIns.TransactionManager());
+        return new FileUserStorageProvider(session, component, repository, adapterCache, metrics);
+    }
+
+    private String randomUsername() {
+        return BenchmarkData.username(ThreadLocalRandom.current().nextInt(userCount));
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername() {
+        return newProvider().getUserByUsername(randomUsername(), realm);
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        FileUserStorageProvider provider = newProvider();
+        UserModel user = provider.getUserByUsername(randomUsername(), realm);
+        return provider.isValid(realm, user, UserCredentialModel.password(BenchmarkData.PASSWORD));
+    }
+
+    @Benchmark
+    public List<UserModel> getUsersPage() {
+        int pages = Math.max(1, userCount / pageSize);
+        int first = ThreadLocalRandom.current().nextInt(pages) * pageSize;
+        return newProvider().getUsers(realm, first, pageSize);
+    }
+}
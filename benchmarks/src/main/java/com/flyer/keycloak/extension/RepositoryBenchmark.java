@@ -0,0 +1,107 @@
+package com.flyer.keycloak.extension;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of the user repository, unsharded and sharded
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({"10000", "100000"})
+    public int userCount;
+
+    @Param({"true", "false"})
+    public boolean journalEnabled;
+
+    @Param({"1", "8"})
+    public int shardCount;
+
+    @Param({"SYNC_FSYNC", "WRITE_BEHIND"})
+    public DurabilityPolicy.Mode durability;
+
+    private Path directory;
+    private ShardedUserRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("repository-benchmark");
+        repository = BenchmarkData.shardedRepository(directory, userCount, journalEnabled, shardCount, durability);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        BenchmarkData.deleteRecursively(directory);
+    }
+
+    private String randomUsername() {
+        return BenchmarkData.username(ThreadLocalRandom.current().nextInt(userCount));
+    }
+
+    @Benchmark
+    public User getUser() {
+        return repository.getUser(randomUsername());
+    }
+
+    @Benchmark
+    public List<User> findUserByKeyword() {
+        // a first name plus index prefix, matching roughly one in ten thousand users
+        return repository.findUserByKeyword("arya" + ThreadLocalRandom.current().nextInt(1, 10));
+    }
+
+    @Benchmark
+    public List<User> getAllUsers() {
+        return repository.getAllUsers();
+    }
+
+    @Benchmark
+    public List<User> getUsersPage() {
+        return repository.getUsers(ThreadLocalRandom.current().nextInt(userCount), 20);
+    }
+
+    @Benchmark
+    public void updateAndPersist() throws IOException {
+        updateRandomUserAndPersist();
+    }
+
+    // writers spread over shards should not queue behind each other
+    @Benchmark
+    @Threads(8)
+    public void concurrentUpdateAndPersist() throws IOException {
+        updateRandomUserAndPersist();
+    }
+
+    private void updateRandomUserAndPersist() throws IOException {
+        User user = new User(repository.getUser(randomUsername()));
+        user.setFavouriteLine("Valar morghulis " + System.nanoTime());
+        repository.updateUser(user);
+        repository.persistUserDataToFile();
+    }
+}
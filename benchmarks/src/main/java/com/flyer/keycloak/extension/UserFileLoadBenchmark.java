@@ -0,0 +1,67 @@
+package com.flyer.keycloak.extension;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start-up cost of loading a user file into a fresh repository
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class UserFileLoadBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int userCount;
+
+    @Param({"userDB.json", "userDB.jsonl", "userDB.bin"})
+    public String fileName;
+
+    private Path directory;
+    private Path file;
+    private Path workFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("load-benchmark");
+        file = BenchmarkData.writeUsers(directory.resolve("source-" + fileName), userCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyFile() throws IOException {
+        // a fresh copy per load, so the benchmark never sees a snapshot written back by an earlier one
+        Path copyDirectory = Files.createTempDirectory(directory, "run");
+        workFile = Files.copy(file, copyDirectory.resolve(fileName));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        return new FileUserRepository(workFile.toString(), false, FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL,
+                SnapshotFormat.fromPath(workFile), UserStore.Type.MAP, false).getUserCount();
+    }
+}
@@ -0,0 +1,98 @@
+package com.flyer.keycloak.extension;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Memory footprint and lookup cost of each {@link UserStore.Type}
+ */
+
+public class UserStoreFootprint {
+
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        if (args.length > 1) {
+            measure(UserStore.Type.valueOf(args[1]), userCount);
+            return;
+        }
+
+        System.out.printf("%-18s %12s %12s %14s %12s%n", "store", "heap MB", "direct MB", "bytes/user", "ns/get");
+        for (UserStore.Type type : UserStore.Type.values()) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                    UserStoreFootprint.class.getName(), String.valueOf(userCount), type.name()));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith(type.name())) System.out.println(line);
+                }
+            }
+            process.waitFor();
+        }
+    }
+
+    private static void measure(UserStore.Type type, int userCount) throws InterruptedException {
+        String passwordHash = HashUtil.hashString(BenchmarkData.PASSWORD);
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+
+        UserStore store = type.create();
+        for (int i = 0; i < userCount; i++) {
+            store.put(distinctCopy(BenchmarkData.user(i, passwordHash)));
+        }
+        long heap = usedHeap() - heapBefore;
+        long direct = usedDirect() - directBefore;
+
+        Random random = new Random(42);
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (store.get(BenchmarkData.username(random.nextInt(userCount))) != null) found++;
+        }
+        long nanosPerGet = (System.nanoTime() - start) / LOOKUPS;
+        if (found != LOOKUPS) throw new IllegalStateException(type + " lost users");
+
+        System.out.printf("%-18s %12.1f %12.1f %14d %12d%n", type, heap / 1e6, direct / 1e6,
+                (heap + direct) / userCount, nanosPerGet);
+    }
+
+    private static User distinctCopy(User user) {
+        User copy = new User();
+        copy.setUsername(new String(user.getUsername()));
+        copy.setFirstName(new String(user.getFirstName()));
+        copy.setLastName(new String(user.getLastName()));
+        copy.setEmail(new String(user.getEmail()));
+        copy.setPasswordHash(new String(user.getPassword()));
+        copy.setFavouriteLine(new String(user.getFavouriteLine()));
+        return copy;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,88 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exact-match index from attribute values to usernames, for a configured set of attribute names
+ */
+
+public class AttributeIndex {
+
+    private final Set<String> names;
+    private final Map<String, Map<String, Set<String>>> usernamesByValue = new ConcurrentHashMap<>(); // by name
+    private final Map<String, Map<String, Set<String>>> valuesByUsername = new ConcurrentHashMap<>(); // indexed values by name
+
+    public AttributeIndex(Collection<String> names) {
+        this.names = Collections.unmodifiableSet(new HashSet<>(names));
+        for (String name : this.names) usernamesByValue.put(name, new ConcurrentHashMap<>());
+    }
+
+    public boolean isIndexed(String name) {
+        return names.contains(name);
+    }
+
+    public Set<String> getNames() {
+        return names;
+    }
+
+    public void add(User user) {
+        if (names.isEmpty()) return;
+        String username = user.getUsername();
+        Map<String, Set<String>> indexed = new HashMap<>();
+        for (String name : names) {
+            List<String> values = user.getAttribute(name);
+            if (!values.isEmpty()) indexed.put(name, new HashSet<>(values));
+        }
+        Map<String, Set<String>> previous = indexed.isEmpty()
+                ? valuesByUsername.remove(username) : valuesByUsername.put(username, indexed);
+        if (previous != null) {
+            previous.forEach((name, values) -> {
+                for (String value : values) {
+                    if (!indexed.getOrDefault(name, Collections.emptySet()).contains(value)) unlink(name, value, username);
+                }
+            });
+        }
+        indexed.forEach((name, values) -> {
+            for (String value : values) link(name, value, username);
+        });
+    }
+
+    public void remove(String username) {
+        Map<String, Set<String>> previous = valuesByUsername.remove(username);
+        if (previous == null) return;
+        previous.forEach((name, values) -> {
+            for (String value : values) unlink(name, value, username);
+        });
+    }
+
+    /**
+     * @return usernames having the value among those of the attribute; the name must be indexed
+     */
+    public List<String> search(String name, String value) {
+        Set<String> usernames = usernamesByValue.get(name).get(value);
+        return usernames == null ? Collections.emptyList() : new ArrayList<>(usernames);
+    }
+
+    private void link(String name, String value, String username) {
+        usernamesByValue.get(name).compute(value, (key, usernames) -> {
+            if (usernames == null) usernames = ConcurrentHashMap.newKeySet();
+            usernames.add(username);
+            return usernames;
+        });
+    }
+
+    private void unlink(String name, String value, String username) {
+        usernamesByValue.get(name).computeIfPresent(value, (key, usernames) -> {
+            usernames.remove(username);
+            return usernames.isEmpty() ? null : usernames;
+        });
+    }
+}
@@ -0,0 +1,178 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshot format for the user repository
+ */
+
+@JBossLog
+public class BinaryUserSnapshot {
+
+    public static final String EXTENSION = ".bin";
+    public static final int VERSION = 3;
+    private static final byte[] MAGIC = {'F', 'U', 'S', 'B'};
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4;
+    private static final int TRAILER_SIZE = 8;
+
+    private BinaryUserSnapshot() {
+    }
+
+    public static boolean isBinary(Path path) throws IOException {
+        if (!Files.exists(path)) return path.toString().endsWith(EXTENSION);
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read = 0;
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0) return false;
+                read += n;
+            }
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    public static void write(Path path, Collection<User> users) throws IOException {
+        CRC32 crc = new CRC32();
+        try (OutputStream file = Files.newOutputStream(path)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), crc);
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(users.size());
+            for (User user : users) {
+                writeField(out, user.getUsername());
+                writeField(out, user.getFirstName());
+                writeField(out, user.getLastName());
+                writeField(out, user.getEmail());
+                writeField(out, user.getPassword());
+                writeField(out, user.getFavouriteLine());
+                Map<String, List<String>> attributes = user.getAttributes();
+                out.writeInt(attributes.size());
+                for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                    writeField(out, attribute.getKey());
+                    out.writeInt(attribute.getValue().size());
+                    for (String value : attribute.getValue()) writeField(out, value);
+                }
+                out.writeInt(user.getGroups().size());
+                for (String group : user.getGroups()) writeField(out, group);
+            }
+            out.flush();
+            // the checksum itself is written past the checked stream
+            new DataOutputStream(file).writeLong(crc.getValue());
+        }
+    }
+
+    private static void writeField(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Map the file, verify its checksum and stream every user into the sink
+     *
+     * @return number of users read
+     * @throws IOException on a foreign file, unsupported version or checksum mismatch
+     */
+    public static int read(Path path, Consumer<User> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) throw new IOException("Truncated binary snapshot " + path);
+            if (size > Integer.MAX_VALUE) throw new IOException("Binary snapshot " + path + " exceeds 2 GB, use the JSON format");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            ByteBuffer content = buffer.duplicate();
+            content.limit((int) size - TRAILER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if (crc.getValue() != buffer.getLong((int) size - TRAILER_SIZE))
+                throw new IOException("Checksum mismatch in binary snapshot " + path);
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(path + " is not a binary user snapshot");
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported binary snapshot version " + version + " in " + path);
+
+            int count = buffer.getInt();
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < count; i++) {
+                User user = new User();
+                user.setUsername(readField(buffer, scratch));
+                user.setFirstName(readField(buffer, scratch));
+                user.setLastName(readField(buffer, scratch));
+                user.setEmail(readField(buffer, scratch));
+                user.setPasswordHash(readField(buffer, scratch));
+                user.setFavouriteLine(readField(buffer, scratch));
+                int attributeCount = version < 2 ? 0 : buffer.getInt();
+                for (int a = 0; a < attributeCount; a++) {
+                    String name = readField(buffer, scratch);
+                    String[] values = new String[buffer.getInt()];
+                    for (int v = 0; v < values.length; v++) values[v] = readField(buffer, scratch);
+                    user.setAttribute(name, Arrays.asList(values));
+                }
+                int groupCount = version < 3 ? 0 : buffer.getInt();
+                for (int g = 0; g < groupCount; g++) user.joinGroup(readField(buffer, scratch));
+                sink.accept(user);
+            }
+            return count;
+        }
+    }
+
+    private static String readField(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Convert between userDB.json (array or JSON lines) and the binary format, in either direction.
+     * Mutations still sitting in the source's journal are folded into the target.
+     */
+    public static void convert(Path source, Path target) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<String, User> users = new UserFileLoader(objectMapper).loadWithJournal(source);
+        SnapshotFormat.fromPath(target).write(target, users.values(), objectMapper);
+        log.infov("Converted {0} users from {1} to {2}", users.size(), source, target);
+    }
+
+    /**
+     * Command line conversion: {@code BinaryUserSnapshot <source> <target>}, the target format following its extension
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BinaryUserSnapshot <source> <target>   (target ending in " + EXTENSION + " is written as binary)");
+            System.exit(1);
+        }
+        convert(Paths.get(args[0]), Paths.get(args[1]));
+    }
+}
@@ -0,0 +1,57 @@
+package com.flyer.keycloak.extension;
+
+import java.util.Locale;
+
+/**
+ * Whether the user files are owned by one Keycloak node or shared by several
+ */
+
+public class ClusterPolicy {
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 500;
+
+    public enum Mode {
+        /** this node is the only one using the files */
+        STANDALONE,
+        /** several nodes use the files, coordinating through a locked, shared journal, see {@link SharedUserJournal} */
+        SHARED_FILE;
+
+        /**
+         * Parse "standalone" or "shared-file", in any case and with - or _
+         */
+        public static Mode parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    public static final ClusterPolicy STANDALONE = new ClusterPolicy(Mode.STANDALONE, DEFAULT_POLL_INTERVAL_MILLIS);
+
+    private final Mode mode;
+    private final long pollIntervalMillis;
+
+    /**
+     * @param mode               whether other nodes share the files
+     * @param pollIntervalMillis how often changes of other nodes are read, which bounds how stale reads get
+     */
+    public ClusterPolicy(Mode mode, long pollIntervalMillis) {
+        this.mode = mode;
+        this.pollIntervalMillis = Math.max(1, pollIntervalMillis);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isShared() {
+        return mode == Mode.SHARED_FILE;
+    }
+
+    public long getPollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return isShared() ? mode + " (poll interval " + pollIntervalMillis + " ms)" : mode.toString();
+    }
+}
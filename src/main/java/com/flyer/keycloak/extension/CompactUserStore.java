@@ -0,0 +1,479 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * User store packing every record into large byte slabs, for repositories with millions of users
+ */
+
+@JBossLog
+public class CompactUserStore implements UserStore {
+
+    static final int SLAB_SIZE = 1 << 18; // below half the smallest G1 region, so slabs are not humongous
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private final boolean offHeap;
+    private final StampedLock lock = new StampedLock();
+
+    // written under the write lock, read optimistically
+    private ByteBuffer[] slabs = new ByteBuffer[4];
+    private int slabCount;
+    private int writeOffset; // into the last slab
+    private long[] addresses = new long[INITIAL_CAPACITY]; // per slot: EMPTY, DELETED or record address + 1
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+    private int deleted;
+    private long liveBytes;
+    private long garbageBytes;
+
+    /**
+     * @param offHeap whether the slabs are direct buffers
+     */
+    public CompactUserStore(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public User get(String username) {
+        int hash = username.hashCode();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                User user = find(username, hash);
+                if (lock.validate(stamp)) return user;
+            } catch (RuntimeException e) {
+                // the table was rebuilt under our feet; read again under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(username, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private User find(String username, int hash) {
+        long[] addresses = this.addresses;
+        ByteBuffer[] slabs = this.slabs;
+        int slot = slotOf(addresses, this.hashes, slabs, username, hash);
+        return slot < 0 ? null : decode(slabs, addresses[slot] - 1);
+    }
+
+    @Override
+    public void put(User user) {
+        write(user, true);
+    }
+
+    @Override
+    public boolean replace(User user) {
+        return write(user, false);
+    }
+
+    private boolean write(User user, boolean insert) {
+        byte[] record = encode(user);
+        String username = user.getUsername();
+        int hash = username.hashCode();
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(addresses, hashes, slabs, username, hash);
+            if (slot < 0 && !insert) return false;
+
+            long address = append(record);
+            if (slot >= 0) {
+                int previous = recordLength(slabs, addresses[slot] - 1);
+                liveBytes -= previous;
+                garbageBytes += previous;
+            } else {
+                slot = freeSlot(hash);
+                if (addresses[slot] == DELETED) deleted--;
+                hashes[slot] = hash;
+                size++;
+            }
+            addresses[slot] = address + 1;
+            liveBytes += record.length;
+            maintain();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(String username) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(addresses, hashes, slabs, username, username.hashCode());
+            if (slot < 0) return false;
+            int length = recordLength(slabs, addresses[slot] - 1);
+            liveBytes -= length;
+            garbageBytes += length;
+            addresses[slot] = DELETED;
+            size--;
+            deleted++;
+            maintain();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = this.size;
+        if (lock.validate(stamp)) return size;
+        stamp = lock.readLock();
+        try {
+            return this.size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<User> action) {
+        snapshot().forEach(action);
+    }
+
+    /**
+     * Copies only the record addresses: slabs are never written over, so the records they point to stay
+     * readable however the store changes afterwards
+     */
+    @Override
+    public Collection<User> snapshot() {
+        long stamp = lock.readLock();
+        try {
+            long[] live = new long[size];
+            int count = 0;
+            for (long address : addresses) {
+                if (address != EMPTY && address != DELETED) live[count++] = address - 1;
+            }
+            return new RecordCollection(slabs, live);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return bytes held by the slabs and the hash table
+     */
+    public long getFootprintBytes() {
+        long stamp = lock.readLock();
+        try {
+            long bytes = (long) addresses.length * (Long.BYTES + Integer.BYTES);
+            for (int i = 0; i < slabCount; i++) bytes += slabs[i].capacity();
+            return bytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static int slotOf(long[] addresses, int[] hashes, ByteBuffer[] slabs, String username, int hash) {
+        int mask = addresses.length - 1;
+        byte[] key = null;
+        int slot = spread(hash) & mask;
+        for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if (address == EMPTY) return -1;
+            if (address != DELETED && hashes[slot] == hash) {
+                if (key == null) key = username.getBytes(StandardCharsets.UTF_8);
+                if (usernameEquals(slabs, address - 1, key)) return slot;
+            }
+        }
+        return -1;
+    }
+
+    // caller holds the write lock and knows the username is absent
+    private int freeSlot(int hash) {
+        int mask = addresses.length - 1;
+        int slot = spread(hash) & mask;
+        while (addresses[slot] != EMPTY && addresses[slot] != DELETED) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Keep the table at most three quarters occupied, tombstones included, and reclaim the slabs once
+     * garbage outweighs live records
+     */
+    private void maintain() {
+        if ((long) (size + deleted) * 4 > (long) addresses.length * 3) {
+            int capacity = INITIAL_CAPACITY;
+            while ((long) size * 2 > capacity) capacity <<= 1;
+            rehash(capacity);
+        }
+        if (garbageBytes > liveBytes && garbageBytes > SLAB_SIZE) compactSlabs();
+    }
+
+    private void rehash(int capacity) {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        long[] newAddresses = new long[capacity];
+        int[] newHashes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] == EMPTY || oldAddresses[i] == DELETED) continue;
+            int slot = spread(oldHashes[i]) & mask;
+            while (newAddresses[slot] != EMPTY) slot = (slot + 1) & mask;
+            newAddresses[slot] = oldAddresses[i];
+            newHashes[slot] = oldHashes[i];
+        }
+        addresses = newAddresses;
+        hashes = newHashes;
+        deleted = 0;
+    }
+
+    // copy the live records into fresh slabs; the old ones stay intact for snapshots still reading them
+    private void compactSlabs() {
+        long before = slabBytes();
+        ByteBuffer[] oldSlabs = slabs;
+        slabs = new ByteBuffer[4];
+        slabCount = 0;
+        writeOffset = 0;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            if (addresses[slot] == EMPTY || addresses[slot] == DELETED) continue;
+            addresses[slot] = append(readRecord(oldSlabs, addresses[slot] - 1)) + 1;
+        }
+        garbageBytes = 0;
+        log.infov("Compacted {0} user records from {1} to {2} slab bytes", size, before, slabBytes());
+    }
+
+    private long slabBytes() {
+        long bytes = 0;
+        for (int i = 0; i < slabCount; i++) bytes += slabs[i].capacity();
+        return bytes;
+    }
+
+    private long append(byte[] record) {
+        ByteBuffer slab = slabCount == 0 ? null : slabs[slabCount - 1];
+        if (slab == null || slab.capacity() - writeOffset < record.length) {
+            int capacity = Math.max(SLAB_SIZE, record.length);
+            slab = offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            if (slabCount == slabs.length) slabs = Arrays.copyOf(slabs, slabCount * 2);
+            slabs[slabCount++] = slab;
+            writeOffset = 0;
+        }
+        ByteBuffer view = slab.duplicate();
+        view.position(writeOffset);
+        view.put(record);
+        long address = ((long) (slabCount - 1) << 32) | writeOffset;
+        writeOffset += record.length;
+        return address;
+    }
+
+    private static int recordLength(ByteBuffer[] slabs, long address) {
+        Cursor cursor = new Cursor(slabs, address);
+        int body = cursor.readVarint();
+        return cursor.position - (int) address + body;
+    }
+
+    private static byte[] readRecord(ByteBuffer[] slabs, long address) {
+        byte[] record = new byte[recordLength(slabs, address)];
+        ByteBuffer view = slabs[(int) (address >>> 32)].duplicate();
+        view.position((int) address);
+        view.get(record);
+        return record;
+    }
+
+    private static boolean usernameEquals(ByteBuffer[] slabs, long address, byte[] key) {
+        Cursor cursor = new Cursor(slabs, address);
+        cursor.readVarint(); // record length
+        if (cursor.readVarint() != key.length + 1) return false;
+        for (byte b : key) {
+            if (cursor.slab.get(cursor.position++) != b) return false;
+        }
+        return true;
+    }
+
+    static byte[] encode(User user) {
+        RecordWriter body = new RecordWriter();
+        for (String field : new String[]{user.getUsername(), user.getFirstName(), user.getLastName(), user.getEmail(),
+                user.getPassword(), user.getFavouriteLine()}) {
+            body.writeString(field);
+        }
+        Map<String, List<String>> attributes = user.getAttributes();
+        body.writeVarint(attributes.size());
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            body.writeString(attribute.getKey());
+            body.writeVarint(attribute.getValue().size());
+            for (String value : attribute.getValue()) body.writeString(value);
+        }
+        body.writeVarint(user.getGroups().size());
+        for (String group : user.getGroups()) body.writeString(group);
+        return body.toRecord();
+    }
+
+    static User decode(ByteBuffer[] slabs, long address) {
+        Cursor cursor = new Cursor(slabs, address);
+        cursor.readVarint(); // record length
+        User user = new User();
+        user.setUsername(cursor.readString());
+        user.setFirstName(cursor.readString());
+        user.setLastName(cursor.readString());
+        user.setEmail(cursor.readString());
+        user.setPasswordHash(cursor.readString());
+        user.setFavouriteLine(cursor.readString());
+        int attributeCount = cursor.readVarint();
+        for (int a = 0; a < attributeCount; a++) {
+            String name = cursor.readString();
+            String[] values = new String[cursor.readVarint()];
+            for (int v = 0; v < values.length; v++) values[v] = cursor.readString();
+            user.setAttribute(name, Arrays.asList(values));
+        }
+        int groupCount = cursor.readVarint();
+        for (int g = 0; g < groupCount; g++) user.joinGroup(cursor.readString());
+        return user;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static int writeVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            target[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Growable buffer a record body is encoded into
+     */
+    private static final class RecordWriter {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            length = CompactUserStore.writeVarint(bytes, length, value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+
+        /**
+         * @return the body prefixed with its length
+         */
+        byte[] toRecord() {
+            byte[] record = new byte[varintSize(length) + length];
+            int position = CompactUserStore.writeVarint(record, 0, length);
+            System.arraycopy(bytes, 0, record, position, length);
+            return record;
+        }
+    }
+
+    /**
+     * Read position within one record; every read is bounds checked, so a torn optimistic read fails with
+     * an exception instead of decoding past the slab
+     */
+    private static final class Cursor {
+        private final ByteBuffer slab;
+        private int position;
+
+        Cursor(ByteBuffer[] slabs, long address) {
+            this.slab = slabs[(int) (address >>> 32)];
+            this.position = (int) address;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+                byte b = slab.get(position++);
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IllegalStateException("Malformed varint in user record");
+        }
+
+        String readString() {
+            int length = readVarint() - 1;
+            if (length == -1) return null;
+            if (length < 0 || length > slab.limit() - position)
+                throw new IllegalStateException("Field length " + length + " runs past the user record");
+            String value;
+            if (slab.hasArray()) {
+                value = new String(slab.array(), slab.arrayOffset() + position, length, StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                ByteBuffer view = slab.duplicate();
+                view.position(position);
+                view.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * Records frozen by {@link #snapshot()}, decoded one at a time while iterating
+     */
+    private static final class RecordCollection extends AbstractCollection<User> {
+        private final ByteBuffer[] slabs;
+        private final long[] addresses;
+
+        RecordCollection(ByteBuffer[] slabs, long[] addresses) {
+            this.slabs = slabs;
+            this.addresses = addresses;
+        }
+
+        @Override
+        public Iterator<User> iterator() {
+            return new Iterator<User>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < addresses.length;
+                }
+
+                @Override
+                public User next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return decode(slabs, addresses[next++]);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return addresses.length;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.flyer.keycloak.extension;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints, laid out like a Roaring bitmap; not thread safe
+ */
+
+public class CompressedBitmap {
+
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private char[] keys;
+    private Chunk[] chunks;
+    private int chunkCount;
+    private int cardinality;
+
+    public CompressedBitmap() {
+        this.keys = new char[4];
+        this.chunks = new Chunk[4];
+    }
+
+    public CompressedBitmap(CompressedBitmap other) {
+        this.keys = Arrays.copyOf(other.keys, Math.max(4, other.chunkCount));
+        this.chunks = new Chunk[keys.length];
+        for (int i = 0; i < other.chunkCount; i++) chunks[i] = other.chunks[i].copy();
+        this.chunkCount = other.chunkCount;
+        this.cardinality = other.cardinality;
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean contains(int value) {
+        int i = find((char) (value >>> 16));
+        return i >= 0 && chunks[i].contains((char) value);
+    }
+
+    /**
+     * @return whether the value was not yet present
+     */
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, key, new ArrayChunk(new char[4], 0));
+        }
+        Chunk chunk = chunks[i];
+        if (chunk.cardinality == ARRAY_MAX && chunk instanceof ArrayChunk && !chunk.contains((char) value)) {
+            chunk = chunks[i] = ((ArrayChunk) chunk).toBitmap();
+        }
+        if (!chunk.add((char) value)) return false;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * @return whether the value was present
+     */
+    public boolean remove(int value) {
+        int i = find((char) (value >>> 16));
+        if (i < 0 || !chunks[i].remove((char) value)) return false;
+        cardinality--;
+        Chunk chunk = chunks[i];
+        if (chunk.cardinality == 0) {
+            System.arraycopy(keys, i + 1, keys, i, chunkCount - i - 1);
+            System.arraycopy(chunks, i + 1, chunks, i, chunkCount - i - 1);
+            chunks[--chunkCount] = null;
+        } else if (chunk.cardinality == ARRAY_MAX && chunk instanceof BitmapChunk) {
+            chunks[i] = ((BitmapChunk) chunk).toArray();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of chunks held as plain bitmaps rather than sorted arrays
+     */
+    int bitmapChunkCount() {
+        int count = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (chunks[i] instanceof BitmapChunk) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Visit the values in ascending order, starting at the given rank
+     *
+     * @return number of values visited
+     */
+    public int forEach(int offset, int limit, IntConsumer action) {
+        int skip = Math.max(0, offset);
+        int visited = 0;
+        for (int i = 0; i < chunkCount && visited < limit; i++) {
+            Chunk chunk = chunks[i];
+            if (skip >= chunk.cardinality) {
+                skip -= chunk.cardinality;
+                continue;
+            }
+            visited += chunk.forEach(keys[i] << 16, skip, limit - visited, action);
+            skip = 0;
+        }
+        return visited;
+    }
+
+    public void forEach(IntConsumer action) {
+        forEach(0, Integer.MAX_VALUE, action);
+    }
+
+    /**
+     * @return a new bitmap of the values in either
+     */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < a.chunkCount || j < b.chunkCount) {
+            int keyA = i < a.chunkCount ? a.keys[i] : Integer.MAX_VALUE;
+            int keyB = j < b.chunkCount ? b.keys[j] : Integer.MAX_VALUE;
+            if (keyA < keyB) {
+                result.appendChunk(a.keys[i], a.chunks[i++].copy());
+            } else if (keyB < keyA) {
+                result.appendChunk(b.keys[j], b.chunks[j++].copy());
+            } else {
+                result.appendChunk(a.keys[i], a.chunks[i++].or(b.chunks[j++]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap of the values in both
+     */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < a.chunkCount && j < b.chunkCount) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (b.keys[j] < a.keys[i]) {
+                j++;
+            } else {
+                Chunk chunk = a.chunks[i].and(b.chunks[j]);
+                if (chunk.cardinality > 0) result.appendChunk(a.keys[i], chunk);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+
+    private void insertChunk(int i, char key, Chunk chunk) {
+        if (chunkCount == keys.length) {
+            keys = Arrays.copyOf(keys, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, chunkCount - i);
+        System.arraycopy(chunks, i, chunks, i + 1, chunkCount - i);
+        keys[i] = key;
+        chunks[i] = chunk;
+        chunkCount++;
+        cardinality += chunk.cardinality;
+    }
+
+    private void appendChunk(char key, Chunk chunk) {
+        insertChunk(chunkCount, key, chunk);
+    }
+
+    private abstract static class Chunk {
+        int cardinality;
+
+        abstract boolean contains(char low);
+
+        abstract boolean add(char low);
+
+        abstract boolean remove(char low);
+
+        abstract Chunk copy();
+
+        abstract Chunk or(Chunk other);
+
+        abstract Chunk and(Chunk other);
+
+        // visit up to limit values from the given rank, high bits or-ed in
+        abstract int forEach(int high, int skip, int limit, IntConsumer action);
+    }
+
+    private static final class ArrayChunk extends Chunk {
+        char[] values; // sorted
+
+        ArrayChunk(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        boolean add(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) return false;
+            i = -i - 1;
+            if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+            return true;
+        }
+
+        @Override
+        boolean remove(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i < 0) return false;
+            System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+            cardinality--;
+            return true;
+        }
+
+        @Override
+        Chunk copy() {
+            return new ArrayChunk(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        BitmapChunk toBitmap() {
+            BitmapChunk bitmap = new BitmapChunk(new long[BITMAP_WORDS], 0);
+            for (int i = 0; i < cardinality; i++) bitmap.add(values[i]);
+            return bitmap;
+        }
+
+        @Override
+        Chunk or(Chunk other) {
+            if (other instanceof BitmapChunk) return other.or(this);
+            ArrayChunk that = (ArrayChunk) other;
+            char[] merged = new char[cardinality + that.cardinality];
+            int i = 0, j = 0, n = 0;
+            while (i < cardinality && j < that.cardinality) {
+                char a = values[i], b = that.values[j];
+                merged[n++] = a <= b ? a : b;
+                if (a <= b) i++;
+                if (b <= a) j++;
+            }
+            while (i < cardinality) merged[n++] = values[i++];
+            while (j < that.cardinality) merged[n++] = that.values[j++];
+            ArrayChunk union = new ArrayChunk(merged, n);
+            return n > ARRAY_MAX ? union.toBitmap() : union;
+        }
+
+        @Override
+        Chunk and(Chunk other) {
+            char[] common = new char[Math.min(cardinality, other.cardinality)];
+            int n = 0;
+            if (other instanceof BitmapChunk) {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) common[n++] = values[i];
+                }
+                return new ArrayChunk(common, n);
+            }
+            ArrayChunk that = (ArrayChunk) other;
+            int i = 0, j = 0;
+            while (i < cardinality && j < that.cardinality) {
+                char a = values[i], b = that.values[j];
+                if (a == b) common[n++] = a;
+                if (a <= b) i++;
+                if (b <= a) j++;
+            }
+            return new ArrayChunk(common, n);
+        }
+
+        @Override
+        int forEach(int high, int skip, int limit, IntConsumer action) {
+            int end = (int) Math.min(cardinality, (long) skip + limit);
+            for (int i = skip; i < end; i++) action.accept(high | values[i]);
+            return Math.max(0, end - skip);
+        }
+    }
+
+    private static final class BitmapChunk extends Chunk {
+        final long[] words;
+
+        BitmapChunk(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        boolean add(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) return false;
+            words[low >>> 6] |= bit;
+            cardinality++;
+            return true;
+        }
+
+        @Override
+        boolean remove(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) return false;
+            words[low >>> 6] &= ~bit;
+            cardinality--;
+            return true;
+        }
+
+        @Override
+        Chunk copy() {
+            return new BitmapChunk(words.clone(), cardinality);
+        }
+
+        ArrayChunk toArray() {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    values[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new ArrayChunk(values, n);
+        }
+
+        @Override
+        Chunk or(Chunk other) {
+            long[] union = words.clone();
+            if (other instanceof ArrayChunk) {
+                ArrayChunk that = (ArrayChunk) other;
+                for (int i = 0; i < that.cardinality; i++) union[that.values[i] >>> 6] |= 1L << that.values[i];
+            } else {
+                long[] those = ((BitmapChunk) other).words;
+                for (int w = 0; w < BITMAP_WORDS; w++) union[w] |= those[w];
+            }
+            return new BitmapChunk(union, bitCount(union));
+        }
+
+        @Override
+        Chunk and(Chunk other) {
+            if (other instanceof ArrayChunk) return other.and(this);
+            long[] common = words.clone();
+            long[] those = ((BitmapChunk) other).words;
+            for (int w = 0; w < BITMAP_WORDS; w++) common[w] &= those[w];
+            BitmapChunk intersection = new BitmapChunk(common, bitCount(common));
+            return intersection.cardinality <= ARRAY_MAX ? intersection.toArray() : intersection;
+        }
+
+        @Override
+        int forEach(int high, int skip, int limit, IntConsumer action) {
+            int visited = 0;
+            for (int w = 0; w < BITMAP_WORDS && visited < limit; w++) {
+                long word = words[w];
+                int count = Long.bitCount(word);
+                if (skip >= count) {
+                    skip -= count;
+                    continue;
+                }
+                for (; word != 0 && visited < limit; word &= word - 1) {
+                    if (skip > 0) {
+                        skip--;
+                        continue;
+                    }
+                    action.accept(high | w << 6 | Long.numberOfTrailingZeros(word));
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+        private static int bitCount(long[] words) {
+            int count = 0;
+            for (long word : words) count += Long.bitCount(word);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.flyer.keycloak.extension;
+
+import java.util.Locale;
+
+/**
+ * When persisted user changes reach the disk, relative to the request that made them
+ */
+
+public class DurabilityPolicy {
+
+    public static final long DEFAULT_MAX_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PENDING_WRITES = 10000;
+
+    public enum Mode {
+        /** the persisting request waits until its changes are forced to disk */
+        SYNC_FSYNC,
+        /** changes are forced to disk in the background, at most the flush interval later */
+        WRITE_BEHIND,
+        /** changes are forced to disk when the repository closes, or when too many are pending */
+        ON_SHUTDOWN;
+
+        /**
+         * Parse "sync-fsync", "write-behind" or "on-shutdown", in any case and with - or _
+         */
+        public static Mode parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    public static final DurabilityPolicy SYNC = new DurabilityPolicy(Mode.SYNC_FSYNC,
+            DEFAULT_MAX_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_PENDING_WRITES);
+
+    private final Mode mode;
+    private final long maxFlushIntervalMillis;
+    private final int maxPendingWrites;
+
+    /**
+     * @param mode                   when changes are forced to disk
+     * @param maxFlushIntervalMillis longest a change waits in write-behind mode
+     * @param maxPendingWrites       number of changes not yet on disk beyond which persisting requests wait
+     *                               for the background flush
+     */
+    public DurabilityPolicy(Mode mode, long maxFlushIntervalMillis, int maxPendingWrites) {
+        this.mode = mode;
+        this.maxFlushIntervalMillis = Math.max(0, maxFlushIntervalMillis);
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getMaxFlushIntervalMillis() {
+        return maxFlushIntervalMillis;
+    }
+
+    public int getMaxPendingWrites() {
+        return maxPendingWrites;
+    }
+
+    @Override
+    public String toString() {
+        return mode + " (max flush interval " + maxFlushIntervalMillis + " ms, max pending writes " + maxPendingWrites + ")";
+    }
+}
@@ -0,0 +1,62 @@
+package com.flyer.keycloak.extension;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Case-normalized email to username index
+ */
+
+public class EmailIndex {
+
+    // sets are replaced rather than changed, so lookups can read them without locking
+    private final Map<String, SortedSet<String>> usernamesByEmail = new ConcurrentHashMap<>();
+    private final Map<String, String> emailsByUsername = new ConcurrentHashMap<>();
+
+    public void add(User user) {
+        String username = user.getUsername();
+        String email = normalize(user.getEmail());
+        String previous = email == null ? emailsByUsername.remove(username) : emailsByUsername.put(username, email);
+        if (previous != null && !previous.equals(email)) unlink(previous, username);
+        if (email != null) link(email, username);
+    }
+
+    public void remove(String username) {
+        String previous = emailsByUsername.remove(username);
+        if (previous != null) unlink(previous, username);
+    }
+
+    /**
+     * @return username owning the email, the first in order when several users share it, or null
+     */
+    public String find(String email) {
+        String normalized = normalize(email);
+        SortedSet<String> usernames = normalized == null ? null : usernamesByEmail.get(normalized);
+        return usernames == null ? null : usernames.first();
+    }
+
+    private void link(String email, String username) {
+        usernamesByEmail.compute(email, (key, usernames) -> {
+            if (usernames != null && usernames.contains(username)) return usernames;
+            SortedSet<String> linked = usernames == null ? new TreeSet<>() : new TreeSet<>(usernames);
+            linked.add(username);
+            return linked;
+        });
+    }
+
+    private void unlink(String email, String username) {
+        usernamesByEmail.computeIfPresent(email, (key, usernames) -> {
+            if (!usernames.contains(username)) return usernames;
+            SortedSet<String> unlinked = new TreeSet<>(usernames);
+            unlinked.remove(username);
+            return unlinked.isEmpty() ? null : unlinked;
+        });
+    }
+
+    private static String normalize(String email) {
+        return email == null ? null : email.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,53 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keycloak transaction buffering a user's federated attribute writes made during a session
+ */
+
+@JBossLog
+public class FederatedAttributeTransaction extends AbstractKeycloakTransaction {
+
+    private final UserFederatedStorageProvider federatedStorage;
+    private final RealmModel realm;
+    private final String userId;
+    private final Map<String, List<String>> pendingWrites = new LinkedHashMap<>(); // null values stand for removal
+
+    public FederatedAttributeTransaction(UserFederatedStorageProvider federatedStorage, RealmModel realm, String userId) {
+        this.federatedStorage = federatedStorage;
+        this.realm = realm;
+        this.userId = userId;
+    }
+
+    public void setAttribute(String name, List<String> values) {
+        pendingWrites.put(name, values);
+    }
+
+    public void removeAttribute(String name) {
+        pendingWrites.put(name, null);
+    }
+
+    @Override
+    protected void commitImpl() {
+        log.infov("Flushing {0} attribute writes of user {1} to federated storage", pendingWrites.size(), userId);
+        pendingWrites.forEach((name, values) -> {
+            if (values == null) federatedStorage.removeAttribute(realm, userId, name);
+            else federatedStorage.setAttribute(realm, userId, name, values);
+        });
+        pendingWrites.clear();
+    }
+
+    @Override
+    protected void rollbackImpl() {
+        log.infov("Discarding {0} attribute writes of user {1}", pendingWrites.size(), userId);
+        pendingWrites.clear();
+    }
+}
@@ -2,8 +2,17 @@ package com.flyer.keycloak.extension;
 
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ModelException;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Custom Keycloak transaction for file based user repository
@@ -15,29 +24,154 @@ import java.io.IOException;
 @JBossLog
 public class FileTransaction extends AbstractKeycloakTransaction {
 
-    private final FileUserRepository userRepository;
-    private final User user;
+    /**
+     * User fields that adapters can change
+     */
+    public enum Field {
+        USERNAME(User::getUsername, User::setUsername),
+        FIRST_NAME(User::getFirstName, User::setFirstName),
+        LAST_NAME(User::getLastName, User::setLastName),
+        EMAIL(User::getEmail, User::setEmail),
+        FAVOURITE_LINE(User::getFavouriteLine, User::setFavouriteLine);
 
-    public FileTransaction(FileUserRepository userRepository, User user) {
+        private final Function<User, String> getter;
+        private final BiConsumer<User, String> setter;
+
+        Field(Function<User, String> getter, BiConsumer<User, String> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        public String get(User user) {
+            return getter.apply(user);
+        }
+
+        void set(User user, String value) {
+            setter.accept(user, value);
+        }
+    }
+
+    /**
+     * Session copy of one user together with the fields, attributes and group memberships changed on it
+     */
+    public static class Draft {
+        private final String username; // key of the record the copy was taken from
+        private final User user;
+        private final EnumSet<Field> dirtyFields = EnumSet.noneOf(Field.class);
+        private final Set<String> dirtyAttributes = new LinkedHashSet<>();
+        private final Map<String, Boolean> dirtyGroups = new LinkedHashMap<>(); // group id to whether joined
+
+        Draft(User user) {
+            this.username = user.getUsername();
+            this.user = new User(user);
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public void set(Field field, String value) {
+            field.set(user, value);
+            dirtyFields.add(field);
+        }
+
+        public void setAttribute(String name, List<String> values) {
+            user.setAttribute(name, values);
+            dirtyAttributes.add(name);
+        }
+
+        public void joinGroup(String groupId) {
+            user.joinGroup(groupId);
+            dirtyGroups.put(groupId, Boolean.TRUE);
+        }
+
+        public void leaveGroup(String groupId) {
+            user.leaveGroup(groupId);
+            dirtyGroups.put(groupId, Boolean.FALSE);
+        }
+
+        boolean isDirty() {
+            return !dirtyFields.isEmpty() || !dirtyAttributes.isEmpty() || !dirtyGroups.isEmpty();
+        }
+    }
+
+    private final UserRepository userRepository;
+    private final ProviderMetrics metrics;
+    private final Map<String, Draft> drafts = new LinkedHashMap<>(); // by original username
+
+    public FileTransaction(UserRepository userRepository, ProviderMetrics metrics) {
         this.userRepository = userRepository;
-        this.user = user;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the session copy of the user, taken on first call
+     */
+    public Draft edit(User user) {
+        return drafts.computeIfAbsent(user.getUsername(), username -> new Draft(user));
     }
 
     @Override
     protected void commitImpl() {
-        log.infov("Updating user to external repository in a transaction.");
-        user.setPassword(user.getUsername()); // surely this needs to be more securely handled
-        log.infov("User to be updated into the repository: {0}", user.toString());
-        userRepository.updateUser(user);
+        long start = System.nanoTime();
         try {
+            int written = 0;
+            for (Draft draft : drafts.values()) {
+                if (draft.isDirty() && apply(draft)) written++;
+            }
+            if (written == 0) return;
+            log.infov("Persisting {0} changed users to external repository", written);
             userRepository.persistUserDataToFile();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.errorv(e, "Could not persist the changes of {0} users", drafts.size());
+            throw new ModelException("Could not persist user changes", e);
+        } finally {
+            drafts.clear();
+            metrics.record(ProviderMetrics.Operation.TRANSACTION_COMMIT, start);
+        }
+    }
+
+    private boolean apply(Draft draft) {
+        log.infov("Updating fields {0}, attributes {1} and groups {2} of user {3}", draft.dirtyFields, draft.dirtyAttributes,
+                draft.dirtyGroups.keySet(), draft.username);
+        if (!draft.dirtyFields.contains(Field.USERNAME) || draft.user.getUsername().equals(draft.username)) {
+            // merged onto the record as it is under the user's lock, so concurrent commits keep each other's changes
+            if (userRepository.updateUser(draft.username, current -> merge(draft, current)) != null) return true;
+            warnRemoved(draft);
+            return false;
         }
+
+        String newUsername = draft.user.getUsername();
+        if (userRepository.renameUser(draft.username, newUsername, current -> merge(draft, current)) != null) return true;
+        if (userRepository.getUser(draft.username) == null) warnRemoved(draft);
+        else log.warnv("Cannot rename user {0} to {1}, which is taken", draft.username, newUsername);
+        return false;
+    }
+
+    // the dirty fields, attributes and memberships of the draft applied onto a copy of the current record
+    private static User merge(Draft draft, User current) {
+        User merged = new User(current);
+        for (Field field : draft.dirtyFields) {
+            field.set(merged, field.get(draft.user));
+        }
+        for (String name : draft.dirtyAttributes) {
+            merged.setAttribute(name, draft.user.getAttribute(name));
+        }
+        draft.dirtyGroups.forEach((groupId, joined) -> {
+            if (joined) merged.joinGroup(groupId);
+            else merged.leaveGroup(groupId);
+        });
+        return merged;
+    }
+
+    private static void warnRemoved(Draft draft) {
+        log.warnv("User {0} was removed by another session, dropping changes to {1} {2} {3}", draft.username,
+                draft.dirtyFields, draft.dirtyAttributes, draft.dirtyGroups.keySet());
     }
 
     @Override
     protected void rollbackImpl() {
-        log.infov("Rolling back data change to external user repository ...");
+        log.infov("Rolling back data change to external user repository, discarding {0} edited users", drafts.size());
+        drafts.clear();
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,32 @@
 package com.flyer.keycloak.extension;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.jbosslog.JBossLog;
 
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 /**
- * JSON file based user repository singleton
+ * File based user repository, holding the users of one shard file
  *
  * @author Ruifeng Ma
  * @since 2019-May-25
@@ -26,97 +35,849 @@ import java.util.stream.Collectors;
 @JBossLog
 public class FileUserRepository implements UserRepository {
 
-    private String filePath;
-    private Map<String, User> userMap;
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    private static final int LOCK_STRIPES = 64;
+    private static final int LOCK_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(LOCK_STRIPES);
 
-    private static FileUserRepository instance;
+    private String filePath;
+    private UserStore userStore;
+    private final KeywordIndex keywordIndex = new KeywordIndex(this::getUser);
+    private final EmailIndex emailIndex = new EmailIndex();
+    private volatile AttributeIndex attributeIndex = new AttributeIndex(Collections.emptySet());
+    private final GroupIndex groupIndex = new GroupIndex();
+    private final Set<UserChangeListener> changeListeners = new CopyOnWriteArraySet<>();
+    private final OrderedUsernameIndex orderedUsernames = new OrderedUsernameIndex();
+    private ObjectMapper objectMapper;
+    private UserJournal journal; // null when every persist rewrites the whole file
+    private SharedUserJournal sharedJournal; // instead of the journal when other nodes share the file
+    private int snapshotInterval;
+    private SnapshotFormat snapshotFormat;
+    private final Lock[] locks;
+    private final Object persistLock = new Object();
+    private Map<String, Long> fileFingerprints; // record fingerprints as last read from or written to the file
+    private long fileModified; // modification time and size of the file as last read or written
+    private long fileSize;
+    private volatile boolean hotReload; // whether external edits must be applied before persisting
+    private final AtomicLong mutationCount = new AtomicLong();
+    private volatile long persistedMutationCount; // written under persistLock
 
-    private FileUserRepository(String filePath) {
+    /**
+     * @param shared whether other nodes use the file too, which implies a shared journal
+     */
+    FileUserRepository(String filePath, boolean journalEnabled, int snapshotInterval, SnapshotFormat snapshotFormat,
+                       UserStore.Type storeType, boolean shared) throws IOException {
         this.filePath = filePath;
-        this.userMap = new HashMap<>();
+        this.snapshotFormat = snapshotFormat;
+        this.userStore = storeType.create();
+        this.objectMapper = new ObjectMapper();
+        this.snapshotInterval = snapshotInterval;
+        this.locks = new Lock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        // a file that cannot be read fails the repository, rather than leaving it empty to be overwritten
+        if (shared) {
+            openSharedJournal();
+        } else {
+            readUsersFromFile();
+            if (journalEnabled) openJournal();
+        }
+        buildIndexes();
+    }
+
+    public Path getFilePath() {
+        return Paths.get(filePath);
+    }
+
+    /**
+     * Stream the snapshot into the user map one record at a time, creating an empty file if none exists
+     */
+    private void readUsersFromFile() throws IOException {
+        Path path = Paths.get(filePath);
+        if (!Files.exists(path)) {
+            if (snapshotFormat == SnapshotFormat.BINARY) {
+                BinaryUserSnapshot.write(path, Collections.emptyList());
+            } else {
+                FileWriter writer = new FileWriter(filePath);
+                writer.close();
+            }
+        }
+        Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+        new UserFileLoader(objectMapper).load(path, user -> {
+            userStore.put(user);
+            fingerprints.put(user.getUsername(), user.fingerprint());
+        });
+        rememberFile(fingerprints);
+    }
+
+    private void rememberFile(Map<String, Long> fingerprints) throws IOException {
+        Path path = Paths.get(filePath);
+        this.fileFingerprints = fingerprints;
+        this.fileModified = Files.getLastModifiedTime(path).toMillis();
+        this.fileSize = Files.size(path);
+    }
+
+    private boolean fileChangedElsewhere() throws IOException {
+        Path path = Paths.get(filePath);
+        return Files.getLastModifiedTime(path).toMillis() != fileModified || Files.size(path) != fileSize;
+    }
+
+    /**
+     * Tell the repository that its file is watched, so external edits not yet applied are reloaded before
+     * a snapshot could overwrite them
+     */
+    void setHotReload(boolean hotReload) {
+        this.hotReload = hotReload;
+    }
+
+    /**
+     * Apply external edits of the file to the live repository
+     *
+     * The file is parsed completely into a separate map before anything is touched, so a file that does
+     * not parse (e.g. one still being written) changes nothing. Records whose fingerprint differs from the
+     * baseline are then swapped in one at a time through the regular mutation path, which journals them,
+     * updates the indexes and invalidates cached adapters; every lookup sees either the old or the new
+     * record. Persisting is held off meanwhile, so a compaction cannot overwrite the edit before it has
+     * been applied.
+     */
+    public void reloadFile() {
+        synchronized (persistLock) {
+            try {
+                if (!fileChangedElsewhere()) return;
+                Map<String, User> loaded = new ConcurrentHashMap<>();
+                new UserFileLoader(objectMapper).load(Paths.get(filePath), user -> loaded.put(user.getUsername(), user));
+                if (loaded.isEmpty() && userStore.size() > 0) {
+                    log.warnv("Ignoring external change of {0}: the file holds no users", filePath);
+                    return;
+                }
+
+                Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+                int inserted = 0, updated = 0, removed = 0;
+                for (User user : loaded.values()) {
+                    long fingerprint = user.fingerprint();
+                    fingerprints.put(user.getUsername(), fingerprint);
+                    Long known = fileFingerprints.get(user.getUsername());
+                    if (known != null && known == fingerprint) continue;
+                    if (getUser(user.getUsername()) == null) {
+                        insertUser(user);
+                        inserted++;
+                    } else {
+                        updateUser(user);
+                        updated++;
+                    }
+                }
+                for (String username : fileFingerprints.keySet()) {
+                    if (!loaded.containsKey(username) && getUser(username) != null) {
+                        removeUser(username);
+                        removed++;
+                    }
+                }
+                rememberFile(fingerprints);
+                log.infov("Applied external change of {0}: {1} inserted, {2} updated, {3} removed",
+                        filePath, inserted, updated, removed);
+            } catch (IOException e) {
+                log.warnv("Could not reload {0}, keeping the current users: {1}", filePath, e.getMessage());
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (persistLock) {
+            if (journal != null) journal.close();
+            if (sharedJournal != null) sharedJournal.close();
+        }
+    }
+
+    /**
+     * Replay journaled mutations on top of the loaded snapshot. A sealed segment left over by an
+     * interrupted compaction is folded into a fresh snapshot straight away.
+     */
+    private void openJournal() throws IOException {
+        journal = new UserJournal(filePath + JOURNAL_SUFFIX);
+        journal.open(this::replayChange);
+        log.infov("Replayed {0} journal records over snapshot {1}", journal.getRecordCount(), filePath);
+        if (journal.hasSealed()) {
+            writeSnapshot(userStore.snapshot());
+            journal.deleteSealed();
+        }
+    }
+
+    // journaled mutation replayed while opening, before the indexes are built
+    private void replayChange(UserJournal.Operation operation, byte[] payload) throws IOException {
+        if (operation == UserJournal.Operation.REMOVE) {
+            userStore.remove(new String(payload, StandardCharsets.UTF_8));
+        } else {
+            userStore.put(objectMapper.readValue(payload, User.class));
+        }
+    }
+
+    /**
+     * Load the snapshot and replay the shared journal under its lock. A journal left from standalone use
+     * is folded into the snapshot first.
+     */
+    private void openSharedJournal() throws IOException {
+        sharedJournal = new SharedUserJournal(filePath + SharedUserJournal.SUFFIX);
+        sharedJournal.open(() -> {
+            readUsersFromFile();
+            Path standalone = Paths.get(filePath + JOURNAL_SUFFIX);
+            if (Files.exists(standalone) || Files.exists(Paths.get(standalone + UserJournal.SEALED_SUFFIX))) {
+                openJournal();
+                writeSnapshot(userStore.snapshot());
+                journal.close();
+                journal = null;
+                Files.delete(standalone);
+                log.infov("Folded the standalone journal of {0} into its snapshot", filePath);
+            }
+        }, this::replayChange);
+    }
+
+    /**
+     * Apply the changes other nodes have written to the shared journal since the last call
+     */
+    void pollChanges() throws IOException {
+        if (sharedJournal != null) sharedJournal.poll(this::applyChange, this::reloadSnapshot);
+    }
+
+    // mutation of another node read from the shared journal; caller holds the journal's lock
+    private void applyChange(UserJournal.Operation operation, byte[] payload) throws IOException {
+        if (operation == UserJournal.Operation.REMOVE) {
+            applyLocally(new String(payload, StandardCharsets.UTF_8), null);
+        } else {
+            User user = objectMapper.readValue(payload, User.class);
+            applyLocally(user.getUsername(), user);
+        }
+    }
+
+    /**
+     * Bring the users in line with a snapshot another node wrote, after missing some of its journal
+     * records; only records that differ are swapped
+     */
+    private void reloadSnapshot() throws IOException {
+        Map<String, User> loaded = new ConcurrentHashMap<>();
+        new UserFileLoader(objectMapper).load(Paths.get(filePath), user -> loaded.put(user.getUsername(), user));
+        int changed = 0;
+        for (User user : loaded.values()) {
+            User current = userStore.get(user.getUsername());
+            if (current != null && current.fingerprint() == user.fingerprint()) continue;
+            applyLocally(user.getUsername(), user);
+            changed++;
+        }
+        List<String> removed = new ArrayList<>();
+        userStore.forEach(user -> {
+            if (!loaded.containsKey(user.getUsername())) removed.add(user.getUsername());
+        });
+        for (String username : removed) applyLocally(username, null);
+        log.infov("Reloaded snapshot {0} written by another node: {1} users changed, {2} removed", filePath,
+                changed, removed.size());
+    }
+
+    // put or, for a null user, remove a record without journaling it
+    private void applyLocally(String username, User user) {
+        Lock lock = lockFor(username);
+        lock.lock();
         try {
-            List<User> userList = readUserAsListFromFile();
-            for (User user : userList) {
-                this.userMap.put(user.getUsername(), user);
+            User previous = this.userStore.get(username);
+            if (user != null) {
+                this.userStore.put(user);
+                index(previous, user);
+            } else if (this.userStore.remove(username)) {
+                unindex(previous);
             }
+        } finally {
+            lock.unlock();
+        }
+        fireUserChanged(username);
+    }
+
+    // with a shared journal, writes take its lock before any stripe, which applies the changes of other nodes first
+    private void lockShared() {
+        if (sharedJournal == null) return;
+        try {
+            sharedJournal.lock(this::applyChange, this::reloadSnapshot);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Could not lock the shared journal of " + filePath, e);
         }
     }
 
-    public static FileUserRepository getInstance(String filePath) {
-        if (instance == null) instance = new FileUserRepository(filePath);
-        return instance;
+    private void unlockShared() {
+        if (sharedJournal != null) sharedJournal.unlock();
+    }
+
+    private Lock lockFor(String username) {
+        return locks[stripeOf(username)];
+    }
+
+    private static int stripeOf(String username) {
+        // spread the hash first: within a shard, usernames share the low bits the shard was picked by
+        return (username.hashCode() * 0x9E3779B9) >>> LOCK_SHIFT;
+    }
+
+    /**
+     * Hold off other mutations of the user, as a mutation would, e.g. while renaming a user to another
+     * shard; locks of several repositories must be taken in the same order by everybody
+     */
+    void lockUser(String username) {
+        lockShared();
+        lockFor(username).lock();
+    }
+
+    void unlockUser(String username) {
+        lockFor(username).unlock();
+        unlockShared();
+    }
+
+    private void lockAll() {
+        for (Lock lock : locks) lock.lock();
     }
 
-    public static FileUserRepository getInstance() throws Exception {
-        if (instance == null)
-            throw new Exception("No filepath specified! The file based user repository hasn't been initialized.");
-        return instance;
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) locks[i].unlock();
     }
 
-    private List<User> readUserAsListFromFile() throws IOException {
-        byte[] userData;
+    // journal a mutation before it is applied, so a failed write fails the mutation instead of losing it on restart
+    private void appendToJournal(UserJournal.Operation operation, User user) {
+        if (journal == null && sharedJournal == null) return;
         try {
-             userData = Files.readAllBytes(Paths.get(filePath));
-        } catch (NoSuchFileException e) {
-            FileWriter writer = new FileWriter(filePath);
-            writer.close();
-            return Collections.EMPTY_LIST;
+            appendToJournal(operation, objectMapper.writeValueAsBytes(user));
+        } catch (IOException e) {
+            throw journalFailed(user.getUsername(), e);
         }
+    }
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(userData, new TypeReference<List<User>>() {
-        });
+    private void appendToJournal(UserJournal.Operation operation, String username) {
+        if (journal == null && sharedJournal == null) return;
+        try {
+            appendToJournal(operation, username.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw journalFailed(username, e);
+        }
+    }
+
+    private void appendToJournal(UserJournal.Operation operation, byte[] payload) throws IOException {
+        if (sharedJournal != null) sharedJournal.append(operation, payload);
+        else journal.append(operation, payload);
+    }
+
+    private IllegalStateException journalFailed(String username, IOException e) {
+        log.errorv(e, "Could not journal the change of user {0} in {1}", username, filePath);
+        return new IllegalStateException("Could not journal the change of user " + username + " in " + filePath, e);
+    }
+
+    @Override
+    public void addChangeListener(UserChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    private void fireUserChanged(String username) {
+        for (UserChangeListener listener : changeListeners) {
+            listener.userChanged(username);
+        }
+    }
+
+    /**
+     * Build all secondary indexes from scratch once the user map has been loaded
+     */
+    private void buildIndexes() {
+        this.userStore.snapshot().parallelStream().forEach(user -> index(null, user));
+    }
+
+    // keep secondary indexes in step with a user record, replacing the previous one if there was any;
+    // callers hold the user's lock stripe
+    private void index(User previous, User user) {
+        keywordIndex.add(previous, user);
+        emailIndex.add(user);
+        attributeIndex.add(user);
+        groupIndex.add(user);
+        orderedUsernames.add(user.getUsername());
+    }
+
+    private void unindex(User previous) {
+        String username = previous.getUsername();
+        keywordIndex.remove(previous);
+        emailIndex.remove(username);
+        attributeIndex.remove(username);
+        groupIndex.remove(username);
+        orderedUsernames.remove(username);
+    }
+
+    /**
+     * Replace the attribute index by one over the given attribute names, built from the current users
+     * while mutations are held off
+     */
+    void indexAttributes(Collection<String> names) {
+        lockAll();
+        try {
+            AttributeIndex index = new AttributeIndex(names);
+            userStore.forEach(index::add);
+            attributeIndex = index;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * @return up to maxResults usernames in ascending order, from the given position on
+     */
+    List<String> orderedUsernames(int firstResult, int maxResults) {
+        return orderedUsernames.range(firstResult, maxResults);
+    }
+
+    /**
+     * @return number of usernames ordered before the given one
+     */
+    int rankOf(String username) {
+        return orderedUsernames.rank(username);
+    }
+
+    private List<User> page(List<String> usernames) {
+        List<User> users = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            User user = this.userStore.get(username);
+            if (user != null) users.add(user);
+        }
+        return users;
+    }
+
+    private void writeSnapshot(Collection<User> users) throws IOException {
+        snapshotFormat.writeAtomically(Paths.get(this.filePath), users, objectMapper);
+        Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+        for (User user : users) {
+            fingerprints.put(user.getUsername(), user.fingerprint());
+        }
+        rememberFile(fingerprints);
     }
 
     /**
      * Persist user data changes at the end of transaction
      *
+     * With journaling enabled, this only forces the appended mutation records to disk; the snapshot is
+     * rewritten once the journal has grown past the configured snapshot interval. Nothing is done when
+     * there was no mutation since the last call.
+     *
      * @throws IOException
      */
+    @Override
     public void persistUserDataToFile() throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.writeValue(new File(this.filePath), this.userMap.values());
+        synchronized (persistLock) {
+            flush();
+            compactIfDue();
+        }
+    }
+
+    /**
+     * Make every mutation so far durable: force the journal to disk or, without a journal, rewrite the
+     * snapshot
+     */
+    void flush() throws IOException {
+        synchronized (persistLock) {
+            if (hotReload && fileChangedElsewhere()) reloadFile(); // don't overwrite an edit not yet applied
+            long mutations = mutationCount.get();
+            if (mutations == persistedMutationCount) return;
+            if (sharedJournal != null) {
+                sharedJournal.sync();
+            } else if (journal == null) {
+                writeSnapshot(snapshotUsers());
+            } else {
+                journal.sync();
+            }
+            persistedMutationCount = mutations;
+        }
+    }
+
+    /**
+     * Fold the journal into a fresh snapshot once it holds the configured number of records
+     */
+    void compactIfDue() throws IOException {
+        synchronized (persistLock) {
+            if (sharedJournal != null) {
+                compactShared(false);
+                return;
+            }
+            if (journal == null || journal.getRecordCount() < snapshotInterval) return;
+            if (hotReload && fileChangedElsewhere()) reloadFile();
+
+            log.infov("Compacting {0} journal records into snapshot {1}", journal.getRecordCount(), filePath);
+            compact();
+        }
+    }
+
+    // caller holds persistLock
+    private void compact() throws IOException {
+        if (journal.hasSealed()) {
+            // the snapshot of an earlier compaction failed; fold that segment in before sealing another
+            writeSnapshot(snapshotUsers());
+            journal.deleteSealed();
+        }
+        Collection<User> users;
+        lockAll();
+        try {
+            journal.rotate();
+            users = userStore.snapshot();
+        } finally {
+            unlockAll();
+        }
+        writeSnapshot(users);
+        journal.deleteSealed();
+    }
+
+    /**
+     * Fold the shared journal into a fresh snapshot while holding its lock, so no node writes in between;
+     * another node may have compacted already
+     *
+     * @param bumpVersion whether the snapshot holds changes that were not journaled, which other nodes then
+     *                    reload
+     */
+    private void compactShared(boolean bumpVersion) throws IOException {
+        sharedJournal.lock(this::applyChange, this::reloadSnapshot);
+        try {
+            if (!bumpVersion && sharedJournal.getRecordCount() < snapshotInterval) return;
+            log.infov("Compacting {0} shared journal records into snapshot {1}", sharedJournal.getRecordCount(), filePath);
+            sharedJournal.compact(() -> writeSnapshot(snapshotUsers()), bumpVersion);
+        } finally {
+            sharedJournal.unlock();
+        }
+    }
+
+    /**
+     * Insert or replace many users at once, e.g. for a migration
+     *
+     * The records bypass the journal: they are put and indexed in one parallel pass, each under its lock
+     * stripe, and a single snapshot is written at the end, which also empties the journal. With a shared
+     * journal, its lock is held throughout and the other nodes reload the snapshot.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void bulkLoad(Collection<User> users) throws IOException {
+        synchronized (persistLock) {
+            if (hotReload && fileChangedElsewhere()) reloadFile();
+            if (sharedJournal != null) sharedJournal.lock(this::applyChange, this::reloadSnapshot);
+            try {
+                users.parallelStream().forEach(user -> {
+                    Lock lock = lockFor(user.getUsername());
+                    lock.lock();
+                    try {
+                        User previous = this.userStore.get(user.getUsername());
+                        this.userStore.put(user);
+                        index(previous, user);
+                        mutationCount.incrementAndGet();
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+                for (User user : users) {
+                    fireUserChanged(user.getUsername());
+                }
+
+                long mutations = mutationCount.get();
+                if (sharedJournal != null) {
+                    sharedJournal.sync();
+                    compactShared(true);
+                } else if (journal == null) {
+                    writeSnapshot(snapshotUsers());
+                } else {
+                    journal.sync(); // mutations made meanwhile by others must not wait on the snapshot
+                    compact();
+                }
+                persistedMutationCount = mutations;
+            } finally {
+                if (sharedJournal != null) sharedJournal.unlock();
+            }
+            log.infov("Bulk loaded {0} users into {1}", users.size(), filePath);
+        }
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> action) {
+        this.userStore.forEach(action);
+    }
+
+    /**
+     * @return number of mutations not yet made durable
+     */
+    long getUnpersistedCount() {
+        return mutationCount.get() - persistedMutationCount;
+    }
+
+    public long getSnapshotSize() {
+        try {
+            return Files.size(Paths.get(filePath));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getJournalSize() {
+        try {
+            Path path = Paths.get(filePath + (sharedJournal != null ? SharedUserJournal.SUFFIX : JOURNAL_SUFFIX));
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public int getJournalRecordCount() {
+        if (sharedJournal != null) return sharedJournal.getRecordCount();
+        return journal == null ? 0 : journal.getRecordCount();
+    }
+
+    /**
+     * @return version of the last shared journal record applied, 0 without a shared journal
+     */
+    public long getSharedVersion() {
+        return sharedJournal == null ? 0 : sharedJournal.getVersion();
+    }
+
+    boolean hasUnpersistedChanges() {
+        return mutationCount.get() != persistedMutationCount;
+    }
+
+    boolean isCompactionDue() {
+        return getJournalRecordCount() >= snapshotInterval && (journal != null || sharedJournal != null);
+    }
+
+    /**
+     * Copy every user record while all stripes are held, so the copy reflects a single point in time
+     * and can be serialized without further locking
+     */
+    private Collection<User> snapshotUsers() {
+        lockAll();
+        try {
+            return userStore.snapshot();
+        } finally {
+            unlockAll();
+        }
     }
 
     @Override
     public void insertUser(User user) {
-        this.userMap.put(user.getUsername(), user);
+        lockShared();
+        Lock lock = lockFor(user.getUsername());
+        lock.lock();
+        try {
+            User previous = this.userStore.get(user.getUsername());
+            appendToJournal(UserJournal.Operation.INSERT, user);
+            this.userStore.put(user);
+            index(previous, user);
+            mutationCount.incrementAndGet();
+            fireUserChanged(user.getUsername());
+        } finally {
+            lock.unlock();
+            unlockShared();
+        }
     }
 
     @Override
     public User getUser(String username) {
-        return this.userMap.get(username);
+        return this.userStore.get(username);
+    }
+
+    @Override
+    public User getUserByEmail(String email) {
+        String username = emailIndex.find(email);
+        return username == null ? null : this.userStore.get(username);
     }
 
     @Override
     public void updateUser(User user) {
-        this.userMap.replace(user.getUsername(), user);
+        lockShared();
+        Lock lock = lockFor(user.getUsername());
+        lock.lock();
+        try {
+            User previous = this.userStore.get(user.getUsername());
+            if (previous == null) return;
+            appendToJournal(UserJournal.Operation.UPDATE, user);
+            this.userStore.replace(user);
+            index(previous, user);
+            mutationCount.incrementAndGet();
+            fireUserChanged(user.getUsername());
+        } finally {
+            lock.unlock();
+            unlockShared();
+        }
+    }
+
+    /**
+     * Change one user based on its current record, read and replaced under the user's lock stripe (and,
+     * with a shared journal, after the changes of other nodes have been applied), so no concurrent change
+     * gets lost in between. The function must not change the username and should be quick, as it runs
+     * while the stripe is held.
+     */
+    @Override
+    public User updateUser(String username, UnaryOperator<User> update) {
+        lockShared();
+        Lock lock = lockFor(username);
+        lock.lock();
+        try {
+            User current = this.userStore.get(username);
+            if (current == null) return null;
+            User updated = update.apply(new User(current));
+            if (updated == null) return null;
+            if (!username.equals(updated.getUsername())) {
+                throw new IllegalArgumentException("Cannot rename user " + username + " while updating it");
+            }
+            appendToJournal(UserJournal.Operation.UPDATE, updated);
+            this.userStore.replace(updated);
+            index(current, updated);
+            mutationCount.incrementAndGet();
+            fireUserChanged(username);
+            return updated;
+        } finally {
+            lock.unlock();
+            unlockShared();
+        }
+    }
+
+    /**
+     * Rename a user within this repository, holding the stripes of both usernames, taken in stripe order,
+     * so the user is never seen under both or neither name. The new record is journaled before the old
+     * one is removed, so a crash in between leaves a duplicate rather than losing the user.
+     */
+    @Override
+    public User renameUser(String username, String newUsername, UnaryOperator<User> update) {
+        int stripe = stripeOf(username), newStripe = stripeOf(newUsername);
+        lockShared();
+        locks[Math.min(stripe, newStripe)].lock();
+        locks[Math.max(stripe, newStripe)].lock();
+        try {
+            return renameLocked(this, username, newUsername, update);
+        } finally {
+            locks[Math.max(stripe, newStripe)].unlock();
+            locks[Math.min(stripe, newStripe)].unlock();
+            unlockShared();
+        }
+    }
+
+    // caller holds the user's lock in this repository and the new username's lock in the target
+    User renameLocked(FileUserRepository target, String username, String newUsername, UnaryOperator<User> update) {
+        User current = this.userStore.get(username);
+        if (current == null || target.getUser(newUsername) != null) return null;
+        User renamed = update.apply(new User(current));
+        if (!newUsername.equals(renamed.getUsername())) {
+            throw new IllegalArgumentException("User " + username + " was not renamed to " + newUsername);
+        }
+        target.insertUser(renamed); // the locks held are reentrant
+        removeUser(username);
+        return renamed;
     }
 
     @Override
     public void removeUser(String username) {
-        this.userMap.remove(username);
+        lockShared();
+        Lock lock = lockFor(username);
+        lock.lock();
+        try {
+            User previous = this.userStore.get(username);
+            if (previous == null) return;
+            appendToJournal(UserJournal.Operation.REMOVE, username);
+            this.userStore.remove(username);
+            unindex(previous);
+            mutationCount.incrementAndGet();
+            fireUserChanged(username);
+        } finally {
+            lock.unlock();
+            unlockShared();
+        }
     }
 
     @Override
     public int getUserCount() {
-        return this.userMap.size();
+        return this.userStore.size();
     }
 
     @Override
     public List<User> getAllUsers() {
-        return this.userMap.values().stream().collect(Collectors.toList());
+        List<User> users = new ArrayList<>(this.userStore.size());
+        this.userStore.forEach(users::add);
+        return users;
+    }
+
+    /**
+     * Page through the users by username; the page is found by position in the ordered index, in
+     * O(log n + maxResults) whatever the offset
+     */
+    @Override
+    public List<User> getUsers(int firstResult, int maxResults) {
+        return page(orderedUsernames.range(Math.max(0, firstResult), maxResults));
+    }
+
+    List<String> findUsernamesByKeyword(String keyword) {
+        return keywordIndex.search(keyword);
+    }
+
+    /**
+     * Page through the keyword hits by username; only the first firstResult + maxResults hits are kept in
+     * order while the h hits are visited, which costs O(h log(firstResult + maxResults)) instead of a full
+     * sort
+     */
+    @Override
+    public List<User> findUserByKeyword(String keyword, int firstResult, int maxResults) {
+        int from = Math.max(0, firstResult);
+        List<String> hits = OrderedUsernameIndex.smallest(keywordIndex.search(keyword),
+                (int) Math.min(Integer.MAX_VALUE, (long) from + Math.max(0, maxResults)));
+        return page(hits.subList(Math.min(from, hits.size()), hits.size()));
+    }
+
+    /**
+     * Users having the value among those of the attribute, found through the attribute index in
+     * O(matches) when the attribute is indexed and by a scan otherwise
+     */
+    @Override
+    public List<User> findUsersByAttribute(String name, String value) {
+        List<User> users = new ArrayList<>();
+        if (!attributeIndex.isIndexed(name)) {
+            userStore.forEach(user -> {
+                if (user.getAttribute(name).contains(value)) users.add(user);
+            });
+            return users;
+        }
+        for (String username : attributeIndex.search(name, value)) {
+            User user = this.userStore.get(username);
+            if (user != null && user.getAttribute(name).contains(value)) users.add(user);
+        }
+        return users;
+    }
+
+    int countGroupMembers(Collection<String> groupIds, boolean all) {
+        return groupIndex.count(groupIds, all);
+    }
+
+    /**
+     * Members of any or all of the groups, combined from the groups' membership bitmaps; the page is
+     * found by rank in the combined bitmap, so its cost does not grow with the offset
+     */
+    @Override
+    public List<User> getGroupMembers(Collection<String> groupIds, boolean all, int firstResult, int maxResults) {
+        return groupIndex.members(groupIds, all, firstResult, maxResults).stream()
+                .map(this.userStore::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean isGroupMember(String username, String groupId) {
+        return groupIndex.isMember(username, groupId);
+    }
+
+    /**
+     * Take every member out of the group, e.g. once the group has been deleted
+     */
+    @Override
+    public void removeGroup(String groupId) {
+        int removed = 0;
+        for (String username : groupIndex.members(Collections.singleton(groupId), false, 0, Integer.MAX_VALUE)) {
+            User updated = updateUser(username, user -> user.leaveGroup(groupId) ? user : null);
+            if (updated != null) removed++;
+        }
+        if (removed > 0) log.infov("Removed {0} members of group {1} from {2}", removed, groupId, filePath);
     }
 
     @Override
     public List<User> findUserByKeyword(String keyword) {
-        String query = keyword.toLowerCase();
-        return this.userMap.values().stream()
-                .filter(user -> user.getUsername().contains(query)
-                                || user.getFirstName().contains(query)
-                                || user.getLastName().contains(query))
+        return keywordIndex.search(keyword).stream()
+                .map(this.userStore::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
 }
@@ -1,19 +1,25 @@
 package com.flyer.keycloak.extension;
 
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.models.*;
+import org.keycloak.models.cache.UserCache;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -30,22 +36,44 @@ public class FileUserStorageProvider implements
         CredentialInputValidator,
         UserQueryProvider,
         UserRegistrationProvider {
+    public static final String FAVOURITE_LINE_ATTRIBUTE = "favouriteLine"; // file-backed attribute
+
     private final KeycloakSession session;
     private final ComponentModel model; // represents how the provider is enabled and configured within a specific realm
-    private final FileUserRepository userRepository;
+    private final UserRepository userRepository;
     private final Map<String, UserModel> loadedUsers;
-
-    public FileUserStorageProvider(KeycloakSession session, ComponentModel model, FileUserRepository userRepository) {
+    private final UserAdapterCache adapterCache;
+    private final ProviderMetrics metrics;
+    private final Set<String> attributeWrites; // users whose cached attributes must be dropped once the session ends
+    private final Set<String> fileAttributes; // attributes kept in the user file besides the favourite line
+    private FileTransaction fileTransaction; // the session's unit of work, enlisted on the first change
+
+    private static final int DEBUG_MAX_LOGGED_USERS = 10;
+    private static final AtomicLong debugLookupCounter = new AtomicLong(); // shared by all sessions for sampling
+    private final boolean debugFederatedStorage;
+    private final int debugSampleRate;
+
+    public FileUserStorageProvider(KeycloakSession session, ComponentModel model, UserRepository userRepository,
+                                   UserAdapterCache adapterCache, ProviderMetrics metrics) {
         this.session = session;
         this.model = model;
         this.userRepository = userRepository;
         this.loadedUsers = new HashMap<>();
+        this.adapterCache = adapterCache;
+        this.metrics = metrics;
+        this.attributeWrites = new HashSet<>();
+        this.fileAttributes = FileUserStorageProviderFactory.attributeNames(model, FileUserStorageProviderFactory.FILE_ATTRIBUTES);
+        this.debugFederatedStorage = model.get(FileUserStorageProviderFactory.DEBUG_FEDERATED_STORAGE, false);
+        this.debugSampleRate = Math.max(1, model.get(FileUserStorageProviderFactory.DEBUG_SAMPLE_RATE,
+                FileUserStorageProviderFactory.DEFAULT_DEBUG_SAMPLE_RATE));
     }
 
     /* UserLookupProvider interface implementation (Start) */
     @Override
     public void close() {
         log.infov("End of transaction.");
+        // attribute writes are visible to other sessions only now that the transaction has completed
+        attributeWrites.forEach(adapterCache::invalidate);
     }
 
     @Override
@@ -58,25 +86,33 @@ public class FileUserStorageProvider implements
 
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        UserModel adapter = loadedUsers.get(username);
-        if (adapter == null) {
-            session.userFederatedStorage().getStoredUsers(realm, 0, Integer.MAX_VALUE).stream().forEach(user -> {
-                log.infov("User in federated storage: {0}", user);
-                log.infov("Attributes: {0}", session.userFederatedStorage().getAttributes(realm, user));
-            });
-            User user = userRepository.getUser(username);
-            if (user != null) {
-                adapter = createAdapter(realm, user);
-                loadedUsers.put(username, adapter);
+        long start = System.nanoTime();
+        try {
+            UserModel adapter = loadedUsers.get(username);
+            if (adapter == null) {
+                if (debugFederatedStorage) logFederatedStorageSample(realm);
+                User user = userRepository.getUser(username);
+                if (user != null) {
+                    adapter = createAdapter(realm, user);
+                    loadedUsers.put(username, adapter);
+                }
             }
+            return adapter;
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USER_BY_USERNAME, start);
         }
-        return adapter;
     }
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
         log.infov("Looking up user via email: email={0} realm={1}", email, realm.getId());
-        return getUserByUsername(email, realm);
+        long start = System.nanoTime();
+        try {
+            User user = userRepository.getUserByEmail(email);
+            return user == null ? null : getUserByUsername(user.getUsername(), realm);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USER_BY_EMAIL, start);
+        }
     }
     /* UserLookupProvider interface implementation (End) */
 
@@ -95,13 +131,41 @@ public class FileUserStorageProvider implements
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
+        long start = System.nanoTime();
+        try {
+            return validatePassword(user, input);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.IS_VALID, start);
+        }
+    }
+
+    private boolean validatePassword(UserModel user, CredentialInput input) {
         if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
 
         UserCredentialModel cred = (UserCredentialModel) input;
-        String password = userRepository.getUser(user.getUsername()).getPassword();
-
-        if (password == null) return false;
-        return password.equals(HashUtil.hashString(cred.getValue()));
+        User fileUser = userRepository.getUser(user.getUsername());
+        if (fileUser == null || fileUser.getPassword() == null) return false;
+        if (!HashUtil.isValid(cred.getValue(), fileUser.getPassword())) return false;
+
+        if (HashUtil.needsRehash(fileUser.getPassword())) {
+            log.infov("Upgrading password hash of user {0}", fileUser.getUsername());
+            // hashed outside the user's lock, and only stored if nobody changed the password meanwhile
+            String verified = fileUser.getPassword();
+            String upgraded = HashUtil.hashString(cred.getValue());
+            User stored = userRepository.updateUser(fileUser.getUsername(), current -> {
+                if (!verified.equals(current.getPassword())) return null;
+                current.setPasswordHash(upgraded);
+                return current;
+            });
+            if (stored != null) {
+                try {
+                    userRepository.persistUserDataToFile();
+                } catch (IOException e) {
+                    log.warnv("Could not persist the upgraded password hash of user {0}: {1}", fileUser.getUsername(), e.getMessage());
+                }
+            }
+        }
+        return true;
     }
     /* CredentialInputValidator interface implementation (End) */
 
@@ -120,61 +184,99 @@ public class FileUserStorageProvider implements
 
     @Override
     public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
-        List<UserModel> userModelList = new LinkedList<>();
-        int i = 0;
-        for (User user : userRepository.getAllUsers()) {
-            if (i++ < firstResult) continue;
-            UserModel userModel = getUserByUsername(user.getUsername(), realm);
-            userModelList.add(userModel);
-            if (userModelList.size() >= maxResults) break;
+        long start = System.nanoTime();
+        try {
+            return toUserModels(userRepository.getUsers(firstResult, maxResults), realm);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USERS, start);
         }
-        return userModelList;
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm) {
-        log.infov("Searching for user: search={0} realm={1}", search, realm.getId());
-        return userRepository.findUserByKeyword(search).stream()
-                .map(user -> getUserByUsername(user.getUsername(), realm))
-                .collect(Collectors.toList());
+        return searchForUser(search, realm, 0, Integer.MAX_VALUE);
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
-        return searchForUser(search, realm);
+        log.infov("Searching for user: search={0} realm={1}", search, realm.getId());
+        long start = System.nanoTime();
+        try {
+            return toUserModels(userRepository.findUserByKeyword(search, firstResult, maxResults), realm);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.SEARCH_FOR_USER, start);
+        }
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
-        log.infov("Searching for user: params={0} realm={1}", params.toString(), realm.getId());
-        if (params.isEmpty()) return getUsers(realm);
-        String usernameParam = params.get("username");
-        if (usernameParam == null) return Collections.EMPTY_LIST;
-        return searchForUser(usernameParam, realm);
+        return searchForUser(params, realm, 0, Integer.MAX_VALUE);
     }
 
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm, int firstResult, int maxResults) {
-        return searchForUser(params, realm);
+        log.infov("Searching for user: params={0} realm={1}", params.toString(), realm.getId());
+        if (params.isEmpty()) return getUsers(realm, firstResult, maxResults);
+        String usernameParam = params.get("username");
+        if (usernameParam == null) return Collections.emptyList();
+        return searchForUser(usernameParam, realm, firstResult, maxResults);
     }
 
+    /**
+     * Direct members kept in the user file, paged through the group's membership bitmap; members recorded
+     * in federated storage are added by Keycloak itself
+     */
     @Override
     public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
-        return Collections.EMPTY_LIST;
+        log.infov("Getting members of group {0}: realm={1}", group.getName(), realm.getId());
+        long start = System.nanoTime();
+        try {
+            return toUserModels(userRepository.getGroupMembers(Collections.singleton(group.getId()), false,
+                    firstResult, maxResults), realm);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_GROUP_MEMBERS, start);
+        }
     }
 
     @Override
     public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
-        return Collections.EMPTY_LIST;
+        return getGroupMembers(realm, group, 0, Integer.MAX_VALUE);
     }
 
+    /**
+     * Only file attributes are answered here; Keycloak looks up federated attributes itself
+     */
     @Override
     public List<UserModel> searchForUserByUserAttribute(String attrName, String attrValue, RealmModel realm) {
-        return Collections.EMPTY_LIST;
+        log.infov("Searching for user by attribute: {0}={1} realm={2}", attrName, attrValue, realm.getId());
+        if (!isFileAttribute(attrName)) return Collections.emptyList();
+        long start = System.nanoTime();
+        try {
+            return toUserModels(userRepository.findUsersByAttribute(attrName, attrValue), realm);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.SEARCH_BY_ATTRIBUTE, start);
+        }
+    }
+
+    private boolean isFileAttribute(String name) {
+        return FAVOURITE_LINE_ATTRIBUTE.equals(name) || fileAttributes.contains(name);
     }
 
     /* UserQueryProvider interface implementation (End) */
 
+    /* UserStorageProvider interface implementation (Start) */
+    @Override
+    public void preRemove(RealmModel realm, GroupModel group) {
+        log.infov("Removing members of deleted group {0}: realm={1}", group.getName(), realm.getId());
+        try {
+            userRepository.removeGroup(group.getId());
+            userRepository.persistUserDataToFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    /* UserStorageProvider interface implementation (End) */
+
     /* UserRegistrationProvider interface implementation (Start) */
     @Override
     public UserModel addUser(RealmModel realm, String username) {
@@ -200,98 +302,281 @@ public class FileUserStorageProvider implements
     }
     /* UserRegistrationProvider interface implementation (End) */
 
+    /**
+     * Bring Keycloak's copies of the users in line with the repository: cached users are evicted and, when
+     * the component imports users, imported copies are added, updated or removed
+     */
+    void synchronize(RealmModel realm, Collection<String> usernames, SynchronizationResult result) {
+        boolean importEnabled = new UserStorageProviderModel(model).isImportEnabled();
+        UserProvider localStorage = session.userLocalStorage();
+        UserCache userCache = session.userCache();
+        for (String username : usernames) {
+            User user = userRepository.getUser(username);
+            UserModel imported = importEnabled ? localStorage.getUserByUsername(username, realm) : null;
+            if (imported != null && !model.getId().equals(imported.getFederationLink())) {
+                log.warnv("Not synchronizing user {0}: a user of the same name exists outside this component", username);
+                result.increaseFailed();
+                continue;
+            }
+
+            if (userCache != null) {
+                if (imported != null) {
+                    userCache.evict(realm, imported);
+                } else {
+                    User cached = user;
+                    if (cached == null) {
+                        cached = new User(); // only the username is needed to evict a user that is gone
+                        cached.setUsername(username);
+                    }
+                    userCache.evict(realm, createAdapter(realm, cached));
+                }
+            }
+
+            if (user == null) {
+                if (imported != null) localStorage.removeUser(realm, imported);
+                result.increaseRemoved();
+            } else if (importEnabled && imported == null) {
+                imported = localStorage.addUser(realm, username);
+                imported.setFederationLink(model.getId());
+                imported.setEnabled(true);
+                copyToImported(user, imported);
+                result.increaseAdded();
+            } else {
+                if (imported != null) copyToImported(user, imported);
+                result.increaseUpdated();
+            }
+        }
+    }
+
+    private void copyToImported(User user, UserModel imported) {
+        imported.setEmail(user.getEmail());
+        imported.setFirstName(user.getFirstName());
+        imported.setLastName(user.getLastName());
+        if (user.getFavouriteLine() == null) {
+            imported.removeAttribute(FAVOURITE_LINE_ATTRIBUTE);
+        } else {
+            imported.setSingleAttribute(FAVOURITE_LINE_ATTRIBUTE, user.getFavouriteLine());
+        }
+        user.getAttributes().forEach(imported::setAttribute);
+    }
+
+    // adapters are only built for the users of the requested page
+    private List<UserModel> toUserModels(List<User> users, RealmModel realm) {
+        return users.stream()
+                .map(user -> getUserByUsername(user.getUsername(), realm))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
     private UserModel createAdapter(RealmModel realm, User user) {
         return new AbstractUserAdapterFederatedStorage(session, realm, model) { // anonymous class inheriting the abstract parent
             @Override
             public String getUsername() {
                 log.infov("[Keycloak UserModel Adapter] Getting username ....");
-                return user.getUsername();
+                return current().getUsername();
             }
 
             @Override
             public String getFirstName() {
                 log.infov("[Keycloak UserModel Adapter] Getting firstName ....");
-                return user.getFirstName();
+                return current().getFirstName();
             }
 
             @Override
             public String getLastName() {
                 log.infov("[Keycloak UserModel Adapter] Getting lastName ....");
-                return user.getLastName();
+                return current().getLastName();
             }
 
             @Override
             public String getEmail() {
                 log.infov("[Keycloak UserModel Adapter] Getting email ....");
-                return user.getEmail();
+                return current().getEmail();
+            }
+
+            private MultivaluedHashMap<String, String> attributes; // session copy, loaded on first access
+            private FederatedAttributeTransaction attributeTransaction;
+            private FileTransaction.Draft draft; // session copy of the user, taken on the first change
+
+            // the shared record is never changed in place; reads see this session's changes through the draft
+            private User current() {
+                return draft == null ? user : draft.getUser();
+            }
+
+            private void setField(FileTransaction.Field field, String value) {
+                if (Objects.equals(field.get(current()), value)) return;
+                if (draft == null) draft = fileTransaction().edit(user);
+                draft.set(field, value);
+            }
+
+            /**
+             * Federated attributes are read once per session, with the file-backed ones merged in
+             */
+            private MultivaluedHashMap<String, String> attributes() {
+                if (attributes == null) {
+                    attributes = adapterCache.getAttributes(realm.getId(), user.getUsername(),
+                            () -> getFederatedStorage().getAttributes(realm, this.getId()));
+                    if (current().getFavouriteLine() != null) attributes.putSingle(FAVOURITE_LINE_ATTRIBUTE, current().getFavouriteLine());
+                    for (String name : fileAttributes) {
+                        List<String> values = current().getAttribute(name);
+                        if (!values.isEmpty()) attributes.put(name, new ArrayList<>(values));
+                    }
+                }
+                return attributes;
+            }
+
+            // file-backed attribute, persisted to the repository instead of federated storage
+            private void writeFileAttribute(String name, List<String> values) {
+                List<String> newValues = values == null ? Collections.emptyList() : values;
+                if (current().getAttribute(name).equals(newValues)) return;
+                if (FAVOURITE_LINE_ATTRIBUTE.equals(name)) {
+                    setField(FileTransaction.Field.FAVOURITE_LINE, newValues.isEmpty() ? null : newValues.get(0));
+                } else {
+                    if (draft == null) draft = fileTransaction().edit(user);
+                    draft.setAttribute(name, newValues);
+                }
+                List<String> stored = current().getAttribute(name);
+                if (stored.isEmpty()) attributes().remove(name);
+                else attributes().put(name, new ArrayList<>(stored));
+            }
+
+            private void writeFederatedAttribute(String name, List<String> values) {
+                if (attributeTransaction == null) {
+                    attributeTransaction = new FederatedAttributeTransaction(getFederatedStorage(), realm, this.getId());
+                    session.getTransactionManager().enlistPrepare(attributeTransaction);
+                }
+                if (values == null) {
+                    attributes().remove(name);
+                    attributeTransaction.removeAttribute(name);
+                } else {
+                    attributes().put(name, new ArrayList<>(values));
+                    attributeTransaction.setAttribute(name, values);
+                }
+                adapterCache.invalidate(user.getUsername());
+                attributeWrites.add(user.getUsername());
             }
 
             @Override
             public String getFirstAttribute(String name) {
                 log.infov("[Keycloak UserModel Adapter] Getting first value of attribute {0} ....", name);
-                return getFederatedStorage().getAttributes(realm, this.getId()).getFirst(name);
+                return attributes().getFirst(name);
             }
 
             @Override
             public Map<String, List<String>> getAttributes() {
                 log.infov("[Keycloak UserModel Adapter] Getting all attributes ....");
-                return getFederatedStorage().getAttributes(realm, this.getId());
+                return new MultivaluedHashMap<>(attributes());
             }
 
             @Override
             public List<String> getAttribute(String name) {
                 log.infov("[Keycloak UserModel Adapter] Getting values of attribute {0} ....", name);
-                return getFederatedStorage().getAttributes(realm, this.getId()).get(name);
+                List<String> values = attributes().get(name);
+                return values == null ? null : new ArrayList<>(values);
             }
 
             @Override
             public void setUsername(String username) {
                 log.infov("[Keycloak UserModel Adapter] Setting username: {0}", username);
-                user.setUsername(username);
+                setField(FileTransaction.Field.USERNAME, username);
             }
 
             @Override
             public void setFirstName(String firstName) {
                 log.infov("[Keycloak UserModel Adapter] Setting firstName: firstName={0}", firstName);
-                user.setFirstName(firstName);
+                setField(FileTransaction.Field.FIRST_NAME, firstName);
             }
 
             @Override
             public void setLastName(String lastName) {
                 log.infov("[Keycloak UserModel Adapter] Setting lastName: lastName={0}", lastName);
-                user.setLastName(lastName);
+                setField(FileTransaction.Field.LAST_NAME, lastName);
             }
 
             @Override
             public void setEmail(String email) {
                 log.infov("[Keycloak UserModel Adapter] Setting email: email={0}", email);
-                user.setEmail(email);
+                setField(FileTransaction.Field.EMAIL, email);
             }
 
             @Override
             public void setSingleAttribute(String name, String value) {
                 log.infov("[Keycloak UserModel Adapter] Setting attribute {0} with value {1}", name, value);
-                getFederatedStorage().setSingleAttribute(realm, this.getId(), name, value);
+                setAttribute(name, Collections.singletonList(value));
+            }
+
+            @Override
+            public void removeAttribute(String name) {
+                log.infov("[Keycloak UserModel Adapter] Removing attribute {0}", name);
+                if (isFileAttribute(name)) writeFileAttribute(name, null);
+                else writeFederatedAttribute(name, null);
             }
 
             @Override
             public void setAttribute(String name, List<String> values) {
                 log.infov("[Keycloak UserModel Adapter] Setting attribute {0} with values {1}", name, values);
+                if (isFileAttribute(name)) writeFileAttribute(name, values);
+                else writeFederatedAttribute(name, values);
+            }
+
+            /**
+             * Memberships kept in the user file; the parent adds those still recorded in federated storage
+             */
+            @Override
+            protected Set<GroupModel> getGroupsInternal() {
+                Set<GroupModel> groups = new HashSet<>();
+                for (String groupId : current().getGroups()) {
+                    GroupModel group = realm.getGroupById(groupId);
+                    if (group != null) groups.add(group);
+                }
+                return groups;
+            }
+
+            @Override
+            public boolean isMemberOf(GroupModel group) {
+                // direct file membership needs no group lookups; otherwise the parent walks the group hierarchy
+                return current().getGroups().contains(group.getId()) || super.isMemberOf(group);
+            }
 
-                FileTransaction transaction = new FileTransaction(userRepository, user);
-                ensureTransactionStarted(transaction);
-                user.setFavouriteLine(values.get(0));
+            @Override
+            public void joinGroup(GroupModel group) {
+                log.infov("[Keycloak UserModel Adapter] Joining group {0}", group.getName());
+                if (current().getGroups().contains(group.getId())) return;
+                if (draft == null) draft = fileTransaction().edit(user);
+                draft.joinGroup(group.getId());
+            }
 
-                getFederatedStorage().setAttribute(realm, this.getId(), name, values);
+            @Override
+            public void leaveGroup(GroupModel group) {
+                log.infov("[Keycloak UserModel Adapter] Leaving group {0}", group.getName());
+                if (!current().getGroups().contains(group.getId())) {
+                    super.leaveGroup(group); // membership recorded in federated storage before groups were kept in the file
+                    return;
+                }
+                if (draft == null) draft = fileTransaction().edit(user);
+                draft.leaveGroup(group.getId());
             }
         };
     }
 
-    private void ensureTransactionStarted(FileTransaction transaction) {
-        if (transaction.getState() == FileTransaction.TransactionState.NOT_STARTED) {
+    private FileTransaction fileTransaction() {
+        if (fileTransaction == null) {
             log.infov("Enlisting user repository transaction ...");
-            session.getTransactionManager().enlistAfterCompletion(transaction);
+            fileTransaction = new FileTransaction(userRepository, metrics);
+            session.getTransactionManager().enlistAfterCompletion(fileTransaction);
         }
+        return fileTransaction;
+    }
+
+    /**
+     * Diagnostic dump of federated storage content, opt-in and sampled as it costs several database queries
+     */
+    private void logFederatedStorageSample(RealmModel realm) {
+        if (debugLookupCounter.getAndIncrement() % debugSampleRate != 0) return;
+        session.userFederatedStorage().getStoredUsers(realm, 0, DEBUG_MAX_LOGGED_USERS).forEach(user -> {
+            log.infov("User in federated storage: {0}", user);
+            log.infov("Attributes: {0}", session.userFederatedStorage().getAttributes(realm, user));
+        });
     }
 
 }
@@ -3,12 +3,38 @@ package com.flyer.keycloak.extension;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Keycloak file based user storage provider factory
@@ -18,20 +44,177 @@ import java.util.List;
  */
 
 @JBossLog
-public class FileUserStorageProviderFactory implements UserStorageProviderFactory<FileUserStorageProvider> {
+public class FileUserStorageProviderFactory implements UserStorageProviderFactory<FileUserStorageProvider>,
+        ImportSynchronization {
+
+    public static final String DEBUG_FEDERATED_STORAGE = "debugFederatedStorage";
+    public static final String DEBUG_SAMPLE_RATE = "debugSampleRate";
+    public static final int DEFAULT_DEBUG_SAMPLE_RATE = 100;
+    public static final String SNAPSHOT_FORMAT = "snapshotFormat";
+    public static final String SNAPSHOT_FORMAT_JSON = "json";
+    public static final String SNAPSHOT_FORMAT_BINARY = "binary";
+    public static final String FILE_PATH = "filePath";
+    public static final String SHARD_COUNT = "shardCount";
+    public static final String FILE_ATTRIBUTES = "fileAttributes";
+    public static final String INDEXED_ATTRIBUTES = "indexedAttributes";
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 1000;
+    public static final long DEFAULT_READY_TIMEOUT_SECONDS = 30;
+    private static final String DEFAULT_FILE_NAME = "userDB.json";
+
+    private boolean journalEnabled;
+    private int snapshotInterval;
+    private boolean hotReload;
+    private DurabilityPolicy durability;
+    private ClusterPolicy cluster;
+    private UserStore.Type storeType;
+    private int adapterCacheSize;
+    private long adapterCacheTtl;
+    private int changeFeedSize;
+    private int syncBatchSize;
+    private boolean preload;
+    private long readyTimeoutMillis;
+    private ExecutorService loader;
+    private final Map<String, CompletableFuture<ComponentStorage>> storages = new ConcurrentHashMap<>(); // by component id, done once loaded
+    private final Map<String, CompletableFuture<Void>> retiring = new ConcurrentHashMap<>(); // by component id, done once closed
+
     @Override
     public void init(Config.Scope config) {
         String someProperty = config.get("someProperty");
         log.infov("Configured {0} with someProperty: {1}", this, someProperty);
+
+        journalEnabled = config.getBoolean("journalEnabled", true);
+        snapshotInterval = config.getInt("snapshotInterval", FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL);
+        log.infov("Configured {0} with journalEnabled: {1}, snapshotInterval: {2}", this, journalEnabled, snapshotInterval);
+
+        durability = new DurabilityPolicy(DurabilityPolicy.Mode.parse(config.get("durability", "sync-fsync")),
+                config.getLong("maxFlushInterval", DurabilityPolicy.DEFAULT_MAX_FLUSH_INTERVAL_MILLIS),
+                config.getInt("maxPendingWrites", DurabilityPolicy.DEFAULT_MAX_PENDING_WRITES));
+        log.infov("Configured {0} with durability: {1}", this, durability);
+
+        cluster = new ClusterPolicy(ClusterPolicy.Mode.parse(config.get("cluster", "standalone")),
+                config.getLong("clusterPollInterval", ClusterPolicy.DEFAULT_POLL_INTERVAL_MILLIS));
+        log.infov("Configured {0} with cluster: {1}", this, cluster);
+
+        storeType = UserStore.Type.parse(config.get("userStore", "map"));
+        log.infov("Configured {0} with userStore: {1}", this, storeType);
+
+        hotReload = config.getBoolean("hotReload", true);
+        log.infov("Configured {0} with hotReload: {1}", this, hotReload);
+
+        HashUtil.configure(config.get("passwordHashAlgorithm", Pbkdf2PasswordHasher.ALGORITHM),
+                config.getInt("passwordHashIterations", Pbkdf2PasswordHasher.DEFAULT_ITERATIONS));
+
+        adapterCacheSize = config.getInt("adapterCacheSize", UserAdapterCache.DEFAULT_MAX_ENTRIES);
+        adapterCacheTtl = config.getLong("adapterCacheTtl", UserAdapterCache.DEFAULT_TTL_SECONDS);
+        log.infov("Configured {0} with adapterCacheSize: {1}, adapterCacheTtl: {2}s", this, adapterCacheSize, adapterCacheTtl);
+
+        changeFeedSize = config.getInt("changeFeedSize", UserChangeFeed.DEFAULT_CAPACITY);
+        syncBatchSize = Math.max(1, config.getInt("syncBatchSize", DEFAULT_SYNC_BATCH_SIZE));
+        log.infov("Configured {0} with changeFeedSize: {1}, syncBatchSize: {2}", this, changeFeedSize, syncBatchSize);
+
+        preload = config.getBoolean("preload", true);
+        readyTimeoutMillis = config.getLong("readyTimeout", DEFAULT_READY_TIMEOUT_SECONDS) * 1000;
+        log.infov("Configured {0} with preload: {1}, readyTimeout: {2}s", this, preload, readyTimeoutMillis / 1000);
+        AtomicInteger threadCount = new AtomicInteger();
+        loader = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "user-repository-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (!preload) return;
+        // the components are read from the database, which can only be done once it has been migrated
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) loader.execute(() -> preload(factory));
+        });
+    }
+
+    /**
+     * Start loading the repositories of all enabled components of this provider, in parallel
+     */
+    private void preload(KeycloakSessionFactory factory) {
+        List<ComponentModel> components = new ArrayList<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                for (RealmModel realm : session.realms().getRealms()) {
+                    for (UserStorageProviderModel model : realm.getUserStorageProviders()) {
+                        if (getId().equals(model.getProviderId()) && model.isEnabled()) components.add(model);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warnv(e, "Could not list the components to preload, they are loaded on first use instead");
+            return;
+        }
+        log.infov("Preloading the users of {0} component(s)", components.size());
+        for (ComponentModel model : components) load(model, factory.getServerStartupTimestamp());
     }
 
     @Override
     public FileUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        log.infov("Creating provider ...");
-        String userHomeDir = System.getProperty("user.home");
-        String fileName = "userDB.json";
+        log.debug("Creating provider ...");
+        ComponentStorage storage = storage(model);
+        while (!storage.acquire()) storage = storage(model); // closed by a component update meanwhile
+        session.enlistForClose(storage::release);
+        return new FileUserStorageProvider(session, model, storage.repository, storage.adapterCache, storage.metrics);
+    }
+
+    // a loaded storage is handed out straight away, otherwise this waits for the load for a bounded time
+    private ComponentStorage storage(ComponentModel model) {
+        CompletableFuture<ComponentStorage> load = storages.get(model.getId());
+        ComponentStorage storage = load == null ? null : load.getNow(null);
+        return storage != null ? storage : awaitStorage(model);
+    }
+
+    private ComponentStorage awaitStorage(ComponentModel model) {
+        CompletableFuture<ComponentStorage> load = load(model, System.currentTimeMillis());
+        try {
+            return load.get(readyTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("The users of component " + model.getName() + " are still being loaded", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the users of component " + model.getName(), e);
+        } catch (ExecutionException e) {
+            storages.remove(model.getId(), load); // the next session tries again
+            throw new IllegalStateException("Could not load the users of component " + model.getName(), e.getCause());
+        }
+    }
 
-        FileUserRepository userRepository = FileUserRepository.getInstance(userHomeDir + "/" +fileName);
+    /**
+     * Start loading the storage of a component in the background unless that has been started already; the
+     * files are only opened once the storage retired by an update of the component has closed them
+     *
+     * @param sinceMillis when the component was first needed, from which its time to ready is taken
+     */
+    private CompletableFuture<ComponentStorage> load(ComponentModel model, long sinceMillis) {
+        return storages.computeIfAbsent(model.getId(), id -> retiring.getOrDefault(id, CompletableFuture.completedFuture(null))
+                .thenApplyAsync(closed -> openStorage(model, sinceMillis), loader));
+    }
+
+    /**
+     * Open the repository of a component, with the file location, shard count and snapshot format taken
+     * from the component's configuration
+     */
+    private ComponentStorage openStorage(ComponentModel model, long sinceMillis) {
+        boolean binary = SNAPSHOT_FORMAT_BINARY.equalsIgnoreCase(model.get(SNAPSHOT_FORMAT, SNAPSHOT_FORMAT_JSON));
+        Path file = resolveFile(model.get(FILE_PATH, ""), binary);
+        int shardCount = model.get(SHARD_COUNT, 1);
+        log.infov("Opening user repository {0} in {1} shard(s) for component {2}", file, shardCount, model.getName());
+
+        ShardedUserRepository userRepository;
+        try {
+            userRepository = new ShardedUserRepository(file, shardCount,
+                    binary ? SnapshotFormat.BINARY : SnapshotFormat.fromPath(file), journalEnabled, snapshotInterval, durability,
+                    storeType, cluster);
+            userRepository.indexAttributes(attributeNames(model, INDEXED_ATTRIBUTES));
+            if (hotReload) userRepository.watchFiles();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the user repository " + file, e);
+        }
 
         if (userRepository.getUserCount() == 0) {
             log.infov("Current user repository is empty. Populating it with some test data ...");
@@ -44,7 +227,217 @@ public class FileUserStorageProviderFactory implements UserStorageProviderFactor
             userRepository.insertUser(user3);
         }
 
-        return new FileUserStorageProvider(session, model, userRepository);
+        UserAdapterCache adapterCache = new UserAdapterCache(adapterCacheSize, adapterCacheTtl);
+        userRepository.addChangeListener(adapterCache);
+        UserChangeFeed changeFeed = new UserChangeFeed(changeFeedSize);
+        userRepository.addChangeListener(changeFeed);
+        long readyMillis = System.currentTimeMillis() - sinceMillis;
+        log.infov("Users of component {0} are ready, time to ready: {1} ms", model.getName(), readyMillis);
+        ProviderMetrics metrics = new ProviderMetrics();
+        metrics.register(model.getId(), userRepository, adapterCache, changeFeed, readyMillis);
+        return new ComponentStorage(userRepository, adapterCache, changeFeed, metrics);
+    }
+
+    /**
+     * The configured path, or userDB.json in the home directory when none is given; a binary snapshot
+     * swaps the extension for {@value BinaryUserSnapshot#EXTENSION}
+     */
+    static Path resolveFile(String filePath, boolean binary) {
+        Path file = filePath == null || filePath.trim().isEmpty()
+                ? Paths.get(System.getProperty("user.home"), DEFAULT_FILE_NAME)
+                : Paths.get(filePath.trim());
+        String name = file.getFileName().toString();
+        boolean binaryName = name.endsWith(BinaryUserSnapshot.EXTENSION);
+        if (binary == binaryName) return file;
+        int dot = name.lastIndexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        return file.resolveSibling(stem + (binary ? BinaryUserSnapshot.EXTENSION : ".json"));
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model)
+            throws ComponentValidationException {
+        String shardCount = model.get(SHARD_COUNT);
+        try {
+            if (shardCount != null && Integer.parseInt(shardCount.trim()) < 1) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException("Shard count must be a positive number: " + shardCount);
+        }
+
+        Set<String> fileAttributes = attributeNames(model, FILE_ATTRIBUTES);
+        for (String name : attributeNames(model, INDEXED_ATTRIBUTES)) {
+            if (!name.equals(FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE) && !fileAttributes.contains(name))
+                throw new ComponentValidationException("Indexed attribute " + name + " is not stored in the user file");
+        }
+    }
+
+    /**
+     * Attribute names listed in a comma separated setting of the component
+     */
+    static Set<String> attributeNames(ComponentModel model, String key) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String name : model.get(key, "").split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        // reopened with the new settings by the next create
+        closeStorage(newModel.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeStorage(model.getId());
+    }
+
+    @Override
+    public void close() {
+        storages.keySet().forEach(this::closeStorage);
+        if (loader != null) loader.shutdown();
+    }
+
+    /**
+     * Retire the storage of a component: one still being loaded is closed once the load completes, and in
+     * use, once its sessions have ended. Until then, the next load of the component waits, so two
+     * repositories never work on the same files.
+     */
+    private void closeStorage(String componentId) {
+        storages.computeIfPresent(componentId, (id, load) -> {
+            CompletableFuture<Void> closed = load.handle((storage, e) -> storage).thenCompose(storage -> {
+                if (storage == null) return CompletableFuture.completedFuture(null); // failed to load, nothing to close
+                storage.retire();
+                return storage.closed;
+            });
+            retiring.merge(id, closed, CompletableFuture::allOf);
+            closed.thenRun(() -> retiring.computeIfPresent(id, (key, all) -> all.isDone() ? null : all));
+            return null;
+        });
+    }
+
+    /**
+     * Visit every user of the file, and with imported users also the imported copies whose user is gone
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        ComponentStorage storage = storage(model);
+        Set<String> usernames = new LinkedHashSet<>(storage.repository.getUserCount());
+        storage.repository.forEachUser(user -> usernames.add(user.getUsername()));
+        if (model.isImportEnabled()) usernames.addAll(importedUsernames(sessionFactory, realmId, model));
+        log.infov("Synchronizing all {0} users of {1}", usernames.size(), model.getName());
+        return synchronize(sessionFactory, realmId, model, new ArrayList<>(usernames));
+    }
+
+    /**
+     * Visit only the users changed since the last synchronization, read from the change feed in batches
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+                                           UserStorageProviderModel model) {
+        UserChangeFeed changeFeed = storage(model).changeFeed;
+        long since = lastSync == null ? -1 : changeFeed.sequenceAt(lastSync.getTime());
+        if (since < 0) {
+            log.infov("Changes of {0} since {1} are no longer all known", model.getName(), lastSync);
+            return sync(sessionFactory, realmId, model);
+        }
+
+        SynchronizationResult result = new SynchronizationResult();
+        List<String> changes;
+        while ((changes = changeFeed.changesSince(since, syncBatchSize)) != null && !changes.isEmpty()) {
+            since += changes.size();
+            result.add(synchronize(sessionFactory, realmId, model, new ArrayList<>(new LinkedHashSet<>(changes))));
+        }
+        if (changes == null) {
+            log.infov("Changes of {0} came faster than they were synchronized", model.getName());
+            result.add(sync(sessionFactory, realmId, model));
+        }
+        log.infov("Synchronized changes of {0} since {1}: {2}", model.getName(), lastSync, result);
+        return result;
+    }
+
+    // one transaction per batch, so a batch that fails leaves those before it applied
+    private SynchronizationResult synchronize(KeycloakSessionFactory sessionFactory, String realmId,
+                                              UserStorageProviderModel model, List<String> usernames) {
+        SynchronizationResult result = new SynchronizationResult();
+        for (int i = 0; i < usernames.size(); i += syncBatchSize) {
+            List<String> batch = usernames.subList(i, Math.min(usernames.size(), i + syncBatchSize));
+            SynchronizationResult batchResult = new SynchronizationResult();
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+                        create(session, model).synchronize(session.realms().getRealm(realmId), batch, batchResult));
+                result.add(batchResult);
+            } catch (RuntimeException e) {
+                log.warnv(e, "Could not synchronize a batch of {0} users of {1}", batch.size(), model.getName());
+                result.setFailed(result.getFailed() + batch.size());
+            }
+        }
+        return result;
+    }
+
+    // usernames of the users imported from this component, read page by page
+    private List<String> importedUsernames(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        List<String> usernames = new ArrayList<>();
+        int[] read = new int[1];
+        for (int first = 0; first == 0 || read[0] == syncBatchSize; first += syncBatchSize) {
+            int firstResult = first;
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                List<UserModel> page = session.userLocalStorage()
+                        .getUsers(session.realms().getRealm(realmId), firstResult, syncBatchSize, false);
+                read[0] = page.size();
+                for (UserModel user : page) {
+                    if (model.getId().equals(user.getFederationLink())) usernames.add(user.getUsername());
+                }
+            });
+        }
+        return usernames;
+    }
+
+    // what a provider component shares across sessions, closed once retired and released by every session
+    private static class ComponentStorage {
+        final ShardedUserRepository repository;
+        final UserAdapterCache adapterCache;
+        final UserChangeFeed changeFeed;
+        final ProviderMetrics metrics;
+        private final AtomicInteger references = new AtomicInteger(1); // the factory's and one per session
+        private final AtomicBoolean retired = new AtomicBoolean();
+        final CompletableFuture<Void> closed = new CompletableFuture<>(); // done once the files are released
+
+        ComponentStorage(ShardedUserRepository repository, UserAdapterCache adapterCache, UserChangeFeed changeFeed,
+                         ProviderMetrics metrics) {
+            this.repository = repository;
+            this.adapterCache = adapterCache;
+            this.changeFeed = changeFeed;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return whether the storage can be used, until the session releases it; false once it is closing
+         */
+        boolean acquire() {
+            for (int count = references.get(); count > 0; count = references.get()) {
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+            return false;
+        }
+
+        void release() {
+            if (references.decrementAndGet() > 0) return;
+            metrics.unregister();
+            try {
+                repository.close(); // writes out whatever the persister still holds
+            } catch (IOException e) {
+                log.errorv(e, "Could not close user repository");
+            } finally {
+                closed.complete(null);
+            }
+        }
+
+        // drop the factory's reference, so the last session closes the storage
+        void retire() {
+            if (retired.compareAndSet(false, true)) release();
+        }
     }
 
     @Override
@@ -64,6 +457,53 @@ public class FileUserStorageProviderFactory implements UserStorageProviderFactor
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .defaultValue("some value")
                 .add()
+                .property()
+                .name(FILE_PATH)
+                .label("User file")
+                .helpText("Path of the user file of this component. Defaults to userDB.json in the home directory of the Keycloak process")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(SHARD_COUNT)
+                .label("Shard count")
+                .helpText("Number of files the users are split over by username hash, each persisted independently. Existing users are redistributed when this changes")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("1")
+                .add()
+                .property()
+                .name(FILE_ATTRIBUTES)
+                .label("File attributes")
+                .helpText("Comma separated names of user attributes kept in the user file instead of federated storage, besides favouriteLine")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(INDEXED_ATTRIBUTES)
+                .label("Indexed attributes")
+                .helpText("Comma separated names of file attributes (or favouriteLine) indexed for exact-match searches by attribute value")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(DEBUG_FEDERATED_STORAGE)
+                .label("Debug federated storage")
+                .helpText("Log the users and attributes held in federated storage on user lookups. Scans the whole federated store, so keep this off in production")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(DEBUG_SAMPLE_RATE)
+                .label("Debug sample rate")
+                .helpText("When debugging federated storage, only log on one out of this many user lookups")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_DEBUG_SAMPLE_RATE))
+                .add()
+                .property()
+                .name(SNAPSHOT_FORMAT)
+                .label("Snapshot format")
+                .helpText("Layout of the user snapshot file: json (userDB.json) or binary (userDB.bin, faster to load). Existing users are converted when this changes")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(SNAPSHOT_FORMAT_JSON, SNAPSHOT_FORMAT_BINARY)
+                .defaultValue(SNAPSHOT_FORMAT_JSON)
+                .add()
                 // more properties
                 // .property()
                 // .add()
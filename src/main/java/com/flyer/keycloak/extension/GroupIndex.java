@@ -0,0 +1,144 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Group membership index of one shard, a {@link CompressedBitmap} of member ordinals per group id
+ */
+
+public class GroupIndex {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ordinals = new HashMap<>(); // by username
+    private String[] usernames = new String[1024]; // by ordinal
+    private int[] freeOrdinals = new int[64];
+    private int freeCount;
+    private int nextOrdinal;
+    private final Map<String, CompressedBitmap> members = new HashMap<>(); // by group id
+    private final Map<String, Set<String>> groupsByUsername = new HashMap<>(); // as last indexed
+
+    public void add(User user) {
+        String username = user.getUsername();
+        Set<String> groups = user.getGroups();
+        lock.writeLock().lock();
+        try {
+            Set<String> previous = groupsByUsername.get(username);
+            if (previous == null && groups.isEmpty()) return;
+            if (groups.isEmpty()) {
+                remove(username, previous);
+                return;
+            }
+            int ordinal = ordinals.computeIfAbsent(username, this::assignOrdinal);
+            if (previous != null) {
+                for (String group : previous) {
+                    if (!groups.contains(group)) leave(group, ordinal);
+                }
+            }
+            for (String group : groups) {
+                members.computeIfAbsent(group, id -> new CompressedBitmap()).add(ordinal);
+            }
+            groupsByUsername.put(username, new HashSet<>(groups));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String username) {
+        lock.writeLock().lock();
+        try {
+            Set<String> previous = groupsByUsername.get(username);
+            if (previous != null) remove(username, previous);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String username, Set<String> groups) {
+        int ordinal = ordinals.remove(username);
+        for (String group : groups) leave(group, ordinal);
+        groupsByUsername.remove(username);
+        usernames[ordinal] = null;
+        if (freeCount == freeOrdinals.length) freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+        freeOrdinals[freeCount++] = ordinal;
+    }
+
+    private void leave(String group, int ordinal) {
+        CompressedBitmap bitmap = members.get(group);
+        if (bitmap != null && bitmap.remove(ordinal) && bitmap.isEmpty()) members.remove(group);
+    }
+
+    private int assignOrdinal(String username) {
+        int ordinal = freeCount > 0 ? freeOrdinals[--freeCount] : nextOrdinal++;
+        if (ordinal == usernames.length) usernames = Arrays.copyOf(usernames, ordinal * 2);
+        usernames[ordinal] = username;
+        return ordinal;
+    }
+
+    public boolean isMember(String username, String groupId) {
+        lock.readLock().lock();
+        try {
+            Integer ordinal = ordinals.get(username);
+            CompressedBitmap bitmap = members.get(groupId);
+            return ordinal != null && bitmap != null && bitmap.contains(ordinal);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param all whether users must be members of all groups rather than of any
+     * @return number of users that are members of the groups
+     */
+    public int count(Collection<String> groupIds, boolean all) {
+        lock.readLock().lock();
+        try {
+            CompressedBitmap bitmap = combine(groupIds, all);
+            return bitmap == null ? 0 : bitmap.getCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param all whether users must be members of all groups rather than of any
+     * @return usernames of a page of the members, in ordinal order
+     */
+    public List<String> members(Collection<String> groupIds, boolean all, int firstResult, int maxResults) {
+        lock.readLock().lock();
+        try {
+            List<String> page = new ArrayList<>();
+            CompressedBitmap bitmap = combine(groupIds, all);
+            if (bitmap != null) bitmap.forEach(firstResult, maxResults, ordinal -> page.add(usernames[ordinal]));
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // union or intersection of the groups' bitmaps, the bitmap itself for a single group; null when empty
+    private CompressedBitmap combine(Collection<String> groupIds, boolean all) {
+        List<CompressedBitmap> bitmaps = new ArrayList<>(groupIds.size());
+        for (String groupId : groupIds) {
+            CompressedBitmap bitmap = members.get(groupId);
+            if (bitmap != null) bitmaps.add(bitmap);
+            else if (all) return null;
+        }
+        if (bitmaps.isEmpty()) return null;
+        if (all) bitmaps.sort(Comparator.comparingInt(CompressedBitmap::getCardinality)); // smallest first shrinks soonest
+        CompressedBitmap result = bitmaps.get(0);
+        for (int i = 1; i < bitmaps.size(); i++) {
+            result = all ? CompressedBitmap.and(result, bitmaps.get(i)) : CompressedBitmap.or(result, bitmaps.get(i));
+        }
+        return result;
+    }
+}
@@ -2,10 +2,9 @@ package com.flyer.keycloak.extension;
 
 import lombok.extern.jbosslog.JBossLog;
 
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Base64;
 
 /**
  * Util class for sensitive information hashing
@@ -14,37 +13,78 @@ import java.security.SecureRandom;
  * @since 2019-May-28
  */
 
+@JBossLog
 public class HashUtil {
 
-    private static final byte[] salt;
+    private static final int SALT_LENGTH = 16;
+    private static final String SEPARATOR = "$";
 
-    static {
-        SecureRandom random = new SecureRandom();
-        salt = new byte[16];
-        random.nextBytes(salt);
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile PasswordHasher hasher = new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.DEFAULT_ITERATIONS);
+
+    /**
+     * Select the algorithm used for new hashes
+     *
+     * @param algorithm  {@value Pbkdf2PasswordHasher#ALGORITHM} or {@value Sha256PasswordHasher#ALGORITHM}
+     * @param iterations iteration count of the algorithm
+     */
+    public static void configure(String algorithm, int iterations) {
+        hasher = createHasher(algorithm, iterations);
+        log.infov("Hashing passwords with {0} and {1} iterations", hasher.getAlgorithm(), hasher.getIterations());
+    }
+
+    private static PasswordHasher createHasher(String algorithm, int iterations) {
+        if (Pbkdf2PasswordHasher.ALGORITHM.equals(algorithm)) return new Pbkdf2PasswordHasher(iterations);
+        if (Sha256PasswordHasher.ALGORITHM.equals(algorithm)) return new Sha256PasswordHasher(iterations);
+        throw new IllegalArgumentException("Unsupported password hash algorithm: " + algorithm);
     }
 
     public static String hashString(String value) {
-        MessageDigest digest = null;
+        PasswordHasher current = hasher;
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = current.hash(value, salt);
 
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return current.getAlgorithm() + SEPARATOR + current.getIterations()
+                + SEPARATOR + encoder.encodeToString(salt) + SEPARATOR + encoder.encodeToString(hash);
+    }
+
+    /**
+     * @param value   plain value to check
+     * @param encoded hash as produced by {@link #hashString(String)}
+     */
+    public static boolean isValid(String value, String encoded) {
+        if (value == null || encoded == null) return false;
+        String[] fields = encoded.split("\\$");
+        if (fields.length != 4) {
+            log.warnv("Unreadable password hash, the user needs a new password");
+            return false;
         }
 
-        digest.update(salt);
-        byte[] encodedHash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
-        return bytesToHex(encodedHash);
+        try {
+            PasswordHasher stored = createHasher(fields[0], Integer.parseInt(fields[1]));
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] salt = decoder.decode(fields[2]);
+            byte[] expected = decoder.decode(fields[3]);
+            return MessageDigest.isEqual(expected, stored.hash(value, salt));
+        } catch (IllegalArgumentException e) {
+            log.warnv("Unreadable password hash: {0}", e.getMessage());
+            return false;
+        }
     }
 
-    private static String bytesToHex(byte[] byteArray) {
-        StringBuffer hexString = new StringBuffer();
-        for (int i = 0; i < byteArray.length; i++) {
-            String hex = Integer.toHexString(0xff & byteArray[i]);
-            if(hex.length() == 1) hexString.append('0');
-            hexString.append(hex);
+    /**
+     * @return whether the hash was made by another algorithm or fewer iterations than configured
+     */
+    public static boolean needsRehash(String encoded) {
+        String[] fields = encoded.split("\\$");
+        if (fields.length != 4) return true;
+        PasswordHasher current = hasher;
+        try {
+            return !current.getAlgorithm().equals(fields[0]) || Integer.parseInt(fields[1]) < current.getIterations();
+        } catch (NumberFormatException e) {
+            return true;
         }
-        return hexString.toString();
     }
 }
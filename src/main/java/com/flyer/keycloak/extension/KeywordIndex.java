@@ -0,0 +1,123 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Incremental gram index over the searchable user fields (username, first name and last name)
+ */
+
+public class KeywordIndex {
+
+    private static final int GRAM_LENGTH = 3;
+
+    private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+    private final Function<String, User> users;
+
+    /**
+     * @param users current record by username, to confirm the candidates of long keywords
+     */
+    public KeywordIndex(Function<String, User> users) {
+        this.users = users;
+    }
+
+    /**
+     * Index a user, replacing what was indexed for its previous record, if any; records are replaced
+     * rather than changed in place, so the previous one still holds the indexed fields; updates of one
+     * username must not run concurrently
+     */
+    public void add(User previous, User user) {
+        String username = user.getUsername();
+        Set<String> grams = grams(user);
+        if (previous != null) {
+            Set<String> stale = grams(previous);
+            if (stale.equals(grams)) return;
+            for (String gram : stale) {
+                if (!grams.contains(gram)) unlink(gram, username);
+            }
+        }
+        for (String gram : grams) link(gram, username);
+    }
+
+    public void remove(User previous) {
+        for (String gram : grams(previous)) unlink(gram, previous.getUsername());
+    }
+
+    /**
+     * @return usernames whose username, first name or last name contains the keyword, ignoring case
+     */
+    public List<String> search(String keyword) {
+        String query = keyword.toLowerCase(Locale.ROOT);
+        if (query.isEmpty()) {
+            // every username has a first character, so the one character grams cover all users
+            Set<String> all = new HashSet<>();
+            postings.forEach((gram, usernames) -> {
+                if (gram.length() == 1) all.addAll(usernames);
+            });
+            return new ArrayList<>(all);
+        }
+        if (query.length() <= GRAM_LENGTH) {
+            return new ArrayList<>(postings.getOrDefault(query, Collections.emptySet()));
+        }
+
+        List<String> hits = new ArrayList<>();
+        Set<String> candidates = null;
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            Set<String> posting = postings.getOrDefault(query.substring(i, i + GRAM_LENGTH), Collections.emptySet());
+            if (candidates == null || posting.size() < candidates.size()) candidates = posting;
+            if (candidates.isEmpty()) return hits;
+        }
+        for (String username : candidates) {
+            User user = users.apply(username);
+            if (user != null && matches(user, query)) hits.add(username);
+        }
+        return hits;
+    }
+
+    private void link(String gram, String username) {
+        postings.compute(gram, (key, usernames) -> {
+            if (usernames == null) usernames = ConcurrentHashMap.newKeySet();
+            usernames.add(username);
+            return usernames;
+        });
+    }
+
+    private void unlink(String gram, String username) {
+        postings.computeIfPresent(gram, (key, usernames) -> {
+            usernames.remove(username);
+            return usernames.isEmpty() ? null : usernames;
+        });
+    }
+
+    private static String[] searchableFields(User user) {
+        return new String[]{user.getUsername(), user.getFirstName(), user.getLastName()};
+    }
+
+    private static boolean matches(User user, String query) {
+        for (String field : searchableFields(user)) {
+            if (field != null && field.toLowerCase(Locale.ROOT).contains(query)) return true;
+        }
+        return false;
+    }
+
+    private static Set<String> grams(User user) {
+        Set<String> grams = new HashSet<>();
+        for (String field : searchableFields(user)) {
+            if (field == null) continue;
+            String text = field.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < text.length(); i++) {
+                for (int length = 1; length <= GRAM_LENGTH && i + length <= text.length(); length++) {
+                    grams.add(text.substring(i, i + length));
+                }
+            }
+        }
+        return grams;
+    }
+}
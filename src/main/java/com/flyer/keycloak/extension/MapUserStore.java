@@ -0,0 +1,56 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * User store keeping every record as a {@link User} object in a concurrent hash map
+ */
+
+public class MapUserStore implements UserStore {
+
+    private final Map<String, User> userMap = new ConcurrentHashMap<>();
+
+    @Override
+    public User get(String username) {
+        return userMap.get(username);
+    }
+
+    @Override
+    public void put(User user) {
+        userMap.put(user.getUsername(), user);
+    }
+
+    @Override
+    public boolean replace(User user) {
+        return userMap.replace(user.getUsername(), user) != null;
+    }
+
+    @Override
+    public boolean remove(String username) {
+        return userMap.remove(username) != null;
+    }
+
+    @Override
+    public int size() {
+        return userMap.size();
+    }
+
+    @Override
+    public void forEach(Consumer<User> action) {
+        userMap.values().forEach(action);
+    }
+
+    @Override
+    public Collection<User> snapshot() {
+        List<User> users = new ArrayList<>(userMap.size());
+        for (User user : userMap.values()) {
+            users.add(new User(user));
+        }
+        return users;
+    }
+}
@@ -0,0 +1,198 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Usernames in ascending order, addressable by position in O(log n)
+ */
+
+public class OrderedUsernameIndex {
+
+    private static final int MAX_CHUNK = 512;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // sorted runs of at most MAX_CHUNK usernames, never empty but for a sole chunk, with a Fenwick tree over their sizes
+    private final List<List<String>> chunks = new ArrayList<>();
+    private int[] tree;
+    private int size;
+
+    public OrderedUsernameIndex() {
+        chunks.add(new ArrayList<>());
+        rebuildTree();
+    }
+
+    /**
+     * Insert in O(log n + chunk size), plus an O(n / chunk size) rebuild of the tree when a chunk splits;
+     * a username already present only takes the read lock
+     *
+     * @return whether the username was not yet present
+     */
+    public boolean add(String username) {
+        lock.readLock().lock();
+        try {
+            if (indexOf(username) >= 0) return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            int chunkIndex = chunkFor(username);
+            List<String> chunk = chunks.get(chunkIndex);
+            int position = Collections.binarySearch(chunk, username);
+            if (position >= 0) return false;
+            chunk.add(-position - 1, username);
+            size++;
+            if (chunk.size() <= MAX_CHUNK) {
+                addToTree(chunkIndex, 1);
+            } else {
+                List<String> upper = new ArrayList<>(chunk.subList(chunk.size() / 2, chunk.size()));
+                chunk.subList(chunk.size() / 2, chunk.size()).clear();
+                chunks.add(chunkIndex + 1, upper);
+                rebuildTree();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether the username was present
+     */
+    public boolean remove(String username) {
+        lock.writeLock().lock();
+        try {
+            int chunkIndex = chunkFor(username);
+            List<String> chunk = chunks.get(chunkIndex);
+            int position = Collections.binarySearch(chunk, username);
+            if (position < 0) return false;
+            chunk.remove(position);
+            size--;
+            if (chunk.isEmpty() && chunks.size() > 1) {
+                chunks.remove(chunkIndex);
+                rebuildTree();
+            } else {
+                addToTree(chunkIndex, -1);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of usernames ordered before the given one, which need not be present
+     */
+    public int rank(String username) {
+        lock.readLock().lock();
+        try {
+            int chunkIndex = chunkFor(username);
+            int position = Collections.binarySearch(chunks.get(chunkIndex), username);
+            return prefix(chunkIndex) + (position >= 0 ? position : -position - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return up to {@code count} usernames in order, starting at the given position, in O(log n + count)
+     */
+    public List<String> range(int from, int count) {
+        lock.readLock().lock();
+        try {
+            if (from < 0 || from >= size || count <= 0) return new ArrayList<>();
+            List<String> usernames = new ArrayList<>(Math.min(count, size - from));
+            // descend the tree to the chunk holding the position
+            int chunkIndex = 0, remaining = from;
+            for (int step = Integer.highestOneBit(chunks.size()); step > 0; step >>= 1) {
+                int next = chunkIndex + step;
+                if (next <= chunks.size() && tree[next] <= remaining) {
+                    chunkIndex = next;
+                    remaining -= tree[next];
+                }
+            }
+            for (int i = chunkIndex; i < chunks.size() && usernames.size() < count; i++, remaining = 0) {
+                List<String> chunk = chunks.get(i);
+                for (int j = remaining; j < chunk.size() && usernames.size() < count; j++) usernames.add(chunk.get(j));
+            }
+            return usernames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the {@code count} smallest of the usernames in order, selected in O(n log count) rather than
+     * by sorting them all
+     */
+    static List<String> smallest(Iterable<String> usernames, int count) {
+        List<String> selected = new ArrayList<>();
+        if (count <= 0) return selected;
+        PriorityQueue<String> largestFirst = new PriorityQueue<>(Collections.reverseOrder());
+        for (String username : usernames) {
+            if (largestFirst.size() < count) {
+                largestFirst.add(username);
+            } else if (username.compareTo(largestFirst.peek()) < 0) {
+                largestFirst.poll();
+                largestFirst.add(username);
+            }
+        }
+        selected.addAll(largestFirst);
+        Collections.sort(selected);
+        return selected;
+    }
+
+    // caller holds a lock
+    private int indexOf(String username) {
+        return Collections.binarySearch(chunks.get(chunkFor(username)), username);
+    }
+
+    // last chunk whose first username is not after the given one, or the first chunk
+    private int chunkFor(String username) {
+        int low = 1, high = chunks.size() - 1, found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (chunks.get(middle).get(0).compareTo(username) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void rebuildTree() {
+        tree = new int[chunks.size() + 1];
+        for (int i = 1; i <= chunks.size(); i++) {
+            tree[i] += chunks.get(i - 1).size();
+            int parent = i + (i & -i);
+            if (parent <= chunks.size()) tree[parent] += tree[i];
+        }
+    }
+
+    private void addToTree(int chunkIndex, int delta) {
+        for (int i = chunkIndex + 1; i < tree.length; i += i & -i) tree[i] += delta;
+    }
+
+    // number of usernames in the chunks before the given one
+    private int prefix(int chunkIndex) {
+        int sum = 0;
+        for (int i = chunkIndex; i > 0; i -= i & -i) sum += tree[i];
+        return sum;
+    }
+}
@@ -0,0 +1,20 @@
+package com.flyer.keycloak.extension;
+
+/**
+ * Pluggable password hashing algorithm
+ */
+
+public interface PasswordHasher {
+
+    /**
+     * @return identifier written as the first field of the encoded hash
+     */
+    String getAlgorithm();
+
+    int getIterations();
+
+    /**
+     * Derive the raw hash of a password with this hasher's iteration count
+     */
+    byte[] hash(String password, byte[] salt);
+}
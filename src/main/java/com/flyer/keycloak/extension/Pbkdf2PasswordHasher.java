@@ -0,0 +1,68 @@
+package com.flyer.keycloak.extension;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * PBKDF2 with HMAC-SHA256 (RFC 8018), deriving a single 32 byte block
+ */
+
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    public static final String ALGORITHM = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 27500;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int iterations;
+
+    public Pbkdf2PasswordHasher(int iterations) {
+        this.iterations = Math.max(1, iterations);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        Mac mac = macs.get();
+        byte[] key = password.getBytes(StandardCharsets.UTF_8);
+        // SecretKeySpec rejects empty keys; HMAC zero-pads keys, so a single zero byte is equivalent
+        if (key.length == 0) key = new byte[]{0};
+        try {
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // U1 = PRF(password, salt || INT(1)), Ui = PRF(password, Ui-1), result = U1 ^ ... ^ Uc
+        mac.update(salt);
+        mac.update(new byte[]{0, 0, 0, 1});
+        byte[] u = mac.doFinal();
+        byte[] result = u.clone();
+        for (int i = 1; i < iterations; i++) {
+            u = mac.doFinal(u);
+            for (int j = 0; j < result.length; j++) {
+                result[j] ^= u[j];
+            }
+        }
+        return result;
+    }
+}
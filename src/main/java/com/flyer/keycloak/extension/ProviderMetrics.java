@@ -0,0 +1,111 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Call counts and latency histograms of one provider component, published over JMX
+ */
+
+@JBossLog
+public class ProviderMetrics {
+
+    public static final String DOMAIN = "com.flyer.keycloak";
+
+    public enum Operation {
+        GET_USER_BY_USERNAME("getUserByUsername"),
+        GET_USER_BY_EMAIL("getUserByEmail"),
+        IS_VALID("isValid"),
+        SEARCH_FOR_USER("searchForUser"),
+        SEARCH_BY_ATTRIBUTE("searchForUserByUserAttribute"),
+        GET_GROUP_MEMBERS("getGroupMembers"),
+        GET_USERS("getUsers"),
+        TRANSACTION_COMMIT("fileTransactionCommit");
+
+        private final String jmxName;
+
+        Operation(String jmxName) {
+            this.jmxName = jmxName;
+        }
+    }
+
+    // which metrics registered each name, so a storage closing after its replacement has registered leaves its MBeans alone
+    private static final Map<ObjectName, ProviderMetrics> owners = new HashMap<>();
+
+    private final Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public ProviderMetrics() {
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Record the time elapsed since a {@link System#nanoTime()} reading taken when the operation started
+     */
+    public void record(Operation operation, long startNanos) {
+        histograms.get(operation).recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Operation operation) {
+        return histograms.get(operation);
+    }
+
+    /**
+     * Register the operation histograms, the repository's persist histogram and its gauges
+     */
+    public void register(String componentId, ShardedUserRepository repository, UserAdapterCache adapterCache,
+                                      UserChangeFeed changeFeed, long readyMillis) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Operation operation : Operation.values()) {
+                register(server, objectName(componentId, operation.jmxName), histograms.get(operation));
+            }
+            register(server, objectName(componentId, "persistUserDataToFile"), repository.getPersistLatency());
+            register(server, objectName(componentId, "flush"), repository.getFlushLatency());
+            register(server, objectName(componentId, "repository"), new RepositoryStats(repository, adapterCache, changeFeed, readyMillis));
+        } catch (JMException e) {
+            log.warnv(e, "Could not register the metrics of component {0}", componentId);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        synchronized (owners) {
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(mbean, name);
+            owners.put(name, this);
+            registered.add(name);
+        }
+    }
+
+    /**
+     * Unregister the MBeans this instance registered, unless they have been replaced since
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (owners) {
+            for (ObjectName name : registered) {
+                try {
+                    if (owners.remove(name, this) && server.isRegistered(name)) server.unregisterMBean(name);
+                } catch (JMException e) {
+                    log.warnv(e, "Could not unregister {0}", name);
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    private static ObjectName objectName(String componentId, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=FileUserStorage,component=" + ObjectName.quote(componentId) + ",name=" + name);
+    }
+}
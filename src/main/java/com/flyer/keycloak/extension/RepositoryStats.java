@@ -0,0 +1,100 @@
+package com.flyer.keycloak.extension;
+
+/**
+ * Gauges read on demand from a component's repository, adapter cache and change feed
+ */
+
+public class RepositoryStats implements RepositoryStatsMBean {
+
+    private final ShardedUserRepository repository;
+    private final UserAdapterCache adapterCache;
+    private final UserChangeFeed changeFeed;
+    private final long readyMillis;
+
+    /**
+     * @param readyMillis time from server start (or from the first request, for a component loaded later)
+     *                    until the repository was ready
+     */
+    public RepositoryStats(ShardedUserRepository repository, UserAdapterCache adapterCache, UserChangeFeed changeFeed,
+                           long readyMillis) {
+        this.repository = repository;
+        this.adapterCache = adapterCache;
+        this.changeFeed = changeFeed;
+        this.readyMillis = readyMillis;
+    }
+
+    @Override
+    public int getUserCount() {
+        return repository.getUserCount();
+    }
+
+    @Override
+    public int getShardCount() {
+        return repository.getShardCount();
+    }
+
+    @Override
+    public long getSnapshotBytes() {
+        return repository.getSnapshotSize();
+    }
+
+    @Override
+    public long getJournalBytes() {
+        return repository.getJournalSize();
+    }
+
+    @Override
+    public int getJournalRecords() {
+        return repository.getJournalRecordCount();
+    }
+
+    @Override
+    public long getLoadMillis() {
+        return repository.getLoadMillis();
+    }
+
+    @Override
+    public long getReadyMillis() {
+        return readyMillis;
+    }
+
+    @Override
+    public long getPendingWrites() {
+        return repository.getPendingWriteCount();
+    }
+
+    @Override
+    public long getSharedJournalVersion() {
+        return repository.getSharedVersion();
+    }
+
+    @Override
+    public long getMillisSinceSharedJournalPoll() {
+        return repository.getMillisSincePoll();
+    }
+
+    @Override
+    public long getChangeSequence() {
+        return changeFeed.getSequence();
+    }
+
+    @Override
+    public int getAdapterCacheSize() {
+        return adapterCache.size();
+    }
+
+    @Override
+    public long getAdapterCacheHits() {
+        return adapterCache.getHitCount();
+    }
+
+    @Override
+    public long getAdapterCacheMisses() {
+        return adapterCache.getMissCount();
+    }
+
+    @Override
+    public double getAdapterCacheHitRate() {
+        return adapterCache.getHitRate();
+    }
+}
@@ -0,0 +1,25 @@
+package com.flyer.keycloak.extension;
+
+/**
+ * JMX gauges of a provider component's repository, adapter cache and change feed
+ */
+
+public interface RepositoryStatsMBean {
+
+    int getUserCount();
+    int getShardCount();
+    long getSnapshotBytes();
+    long getJournalBytes();
+    int getJournalRecords();
+    long getLoadMillis();
+    long getReadyMillis();
+    long getPendingWrites();
+    long getSharedJournalVersion();
+    long getMillisSinceSharedJournalPoll();
+    long getChangeSequence();
+
+    int getAdapterCacheSize();
+    long getAdapterCacheHits();
+    long getAdapterCacheMisses();
+    double getAdapterCacheHitRate();
+}
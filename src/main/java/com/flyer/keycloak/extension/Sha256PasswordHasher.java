@@ -0,0 +1,50 @@
+package com.flyer.keycloak.extension;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Salted and iterated SHA-256, reusing one digest instance per thread
+ */
+
+public class Sha256PasswordHasher implements PasswordHasher {
+
+    public static final String ALGORITHM = "sha256";
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int iterations;
+
+    public Sha256PasswordHasher(int iterations) {
+        this.iterations = Math.max(1, iterations);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(salt);
+        byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        for (int i = 1; i < iterations; i++) {
+            hash = digest.digest(hash);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,591 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * User repository of one provider component, split by username hash over a number of shard files
+ */
+
+@JBossLog
+public class ShardedUserRepository implements UserRepository, Closeable {
+
+    public static final String MIGRATED_SUFFIX = ".migrated";
+
+    private final FileUserRepository[] shards;
+    private final ExecutorService persistExecutor; // null with a single shard
+    private final UserPersister persister;
+    private UserFileWatcher watcher;
+    private final ClusterPolicy cluster;
+    private final ScheduledExecutorService tailer; // null unless the files are shared
+    private volatile long lastPollMillis = System.currentTimeMillis();
+    private final long loadMillis;
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+
+    public ShardedUserRepository(Path file, int shardCount, SnapshotFormat snapshotFormat,
+                                 boolean journalEnabled, int snapshotInterval, DurabilityPolicy durability,
+                                 UserStore.Type storeType, ClusterPolicy cluster) throws IOException {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        long start = System.nanoTime();
+        Path[] shardFiles = shardFiles(file.toAbsolutePath(), shardCount);
+        redistribute(file.toAbsolutePath(), shardFiles, snapshotFormat);
+
+        this.cluster = cluster;
+        this.shards = new FileUserRepository[shardCount];
+        try {
+            IntStream.range(0, shardCount).parallel().forEach(i -> {
+                try {
+                    shards[i] = new FileUserRepository(shardFiles[i].toString(), journalEnabled, snapshotInterval,
+                            snapshotFormat, storeType, cluster.isShared());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            for (FileUserRepository shard : shards) {
+                if (shard == null) continue;
+                try {
+                    shard.close();
+                } catch (IOException closeFailure) {
+                    e.getCause().addSuppressed(closeFailure);
+                }
+            }
+            throw e.getCause();
+        }
+
+        if (shardCount > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.persistExecutor = Executors.newFixedThreadPool(Math.min(shardCount, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "user-shard-persister-" + file.getFileName() + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.persistExecutor = null;
+        }
+        this.persister = new UserPersister(file.getFileName().toString(), durability,
+                () -> forChangedShards(FileUserRepository::hasUnpersistedChanges, FileUserRepository::flush),
+                () -> forChangedShards(FileUserRepository::isCompactionDue, FileUserRepository::compactIfDue),
+                this::getPendingWriteCount);
+        if (cluster.isShared()) {
+            this.tailer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "user-journal-tailer-" + file.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            tailer.scheduleWithFixedDelay(this::pollChanges, cluster.getPollIntervalMillis(), cluster.getPollIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.tailer = null;
+        }
+        this.loadMillis = (System.nanoTime() - start) / 1_000_000;
+        log.infov("Opened {0} users in {1} shard file(s) of {2} in {3} ms, {4}", getUserCount(), shardCount, file,
+                loadMillis, cluster);
+    }
+
+    /**
+     * Apply what other nodes have written to the shared journals; runs on the tailer thread
+     */
+    void pollChanges() {
+        boolean complete = true;
+        for (FileUserRepository shard : shards) {
+            try {
+                shard.pollChanges();
+            } catch (IOException | RuntimeException e) {
+                complete = false;
+                log.warnv("Could not read the changes of other nodes from {0}: {1}", shard.getFilePath(), e.getMessage());
+            }
+        }
+        if (complete) lastPollMillis = System.currentTimeMillis();
+    }
+
+    static int shardIndex(String username, int shardCount) {
+        return (username.hashCode() & 0x7fffffff) % shardCount;
+    }
+
+    private FileUserRepository shardFor(String username) {
+        return shards[shardIndex(username, shards.length)];
+    }
+
+    static Path[] shardFiles(Path file, int shardCount) {
+        if (shardCount == 1) return new Path[]{file};
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        Path[] files = new Path[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            files[i] = file.resolveSibling(stem + "-" + i + extension);
+        }
+        return files;
+    }
+
+    /**
+     * Move the users of data files left from another shard count or snapshot format into the expected
+     * shard files. Files are read oldest first, so for a username found twice the most recent record wins.
+     */
+    private static void redistribute(Path file, Path[] shardFiles, SnapshotFormat snapshotFormat) throws IOException {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        Pattern dataFile = Pattern.compile(Pattern.quote(stem) + "(-\\d+)?(" + Stream.of(extension, ".json",
+                UserFileLoader.JSON_LINES_EXTENSION, BinaryUserSnapshot.EXTENSION).map(Pattern::quote).collect(Collectors.joining("|")) + ")");
+        Set<Path> expected = new HashSet<>();
+        for (Path shardFile : shardFiles) expected.add(shardFile);
+
+        List<Path> existing;
+        Path directory = file.getParent();
+        if (!Files.isDirectory(directory)) return;
+        try (Stream<Path> files = Files.list(directory)) {
+            existing = files.filter(path -> Files.isRegularFile(path) && dataFile.matcher(path.getFileName().toString()).matches())
+                    .sorted(Comparator.comparing(path -> path.toFile().lastModified()))
+                    .collect(Collectors.toList());
+        }
+        if (expected.containsAll(existing)) return;
+
+        log.infov("Redistributing the users of {0} over {1}", existing, shardFiles.length == 1 ? file : shardFiles.length + " shard files");
+        ObjectMapper objectMapper = new ObjectMapper();
+        UserFileLoader loader = new UserFileLoader(objectMapper);
+        Map<String, User> users = new LinkedHashMap<>();
+        for (Path path : existing) {
+            users.putAll(loader.loadWithJournal(path));
+        }
+        for (Path path : existing) {
+            for (Path related : new Path[]{path, path.resolveSibling(path.getFileName() + FileUserRepository.JOURNAL_SUFFIX),
+                    path.resolveSibling(path.getFileName() + FileUserRepository.JOURNAL_SUFFIX + UserJournal.SEALED_SUFFIX),
+                    path.resolveSibling(path.getFileName() + SharedUserJournal.SUFFIX)}) {
+                if (Files.exists(related))
+                    Files.move(related, related.resolveSibling(related.getFileName() + MIGRATED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        List<List<User>> partitions = new ArrayList<>();
+        for (int i = 0; i < shardFiles.length; i++) partitions.add(new ArrayList<>());
+        for (User user : users.values()) {
+            partitions.get(shardIndex(user.getUsername(), shardFiles.length)).add(user);
+        }
+        for (int i = 0; i < shardFiles.length; i++) {
+            snapshotFormat.writeAtomically(shardFiles[i], partitions.get(i), objectMapper);
+        }
+        log.infov("Redistributed {0} users", users.size());
+    }
+
+    /**
+     * Start reloading shard files in the background whenever another process changes them; calling this
+     * again has no effect
+     */
+    public synchronized void watchFiles() throws IOException {
+        if (watcher != null) return;
+        if (cluster.isShared()) {
+            log.infov("Not watching shared user files, other nodes' changes are read from the shared journals");
+            return;
+        }
+        Map<Path, Runnable> callbacks = new HashMap<>();
+        for (FileUserRepository shard : shards) {
+            shard.setHotReload(true);
+            callbacks.put(shard.getFilePath(), shard::reloadFile);
+        }
+        watcher = new UserFileWatcher(callbacks);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) watcher.close();
+        watcher = null;
+        if (tailer != null) {
+            tailer.shutdown(); // not interrupted, which would close the journal channel it reads
+            try {
+                tailer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        persister.close();
+        if (persistExecutor != null) persistExecutor.shutdown();
+        for (FileUserRepository shard : shards) {
+            shard.close();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return milliseconds it took to open the repository, including any redistribution
+     */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    public LatencyHistogram getPersistLatency() {
+        return persistLatency;
+    }
+
+    public LatencyHistogram getFlushLatency() {
+        return persister.getFlushLatency();
+    }
+
+    /**
+     * @return number of changes not yet on disk, i.e. the depth of the persister's queue
+     */
+    public long getPendingWriteCount() {
+        long count = 0;
+        for (FileUserRepository shard : shards) count += shard.getUnpersistedCount();
+        return count;
+    }
+
+    public long getSnapshotSize() {
+        long size = 0;
+        for (FileUserRepository shard : shards) size += shard.getSnapshotSize();
+        return size;
+    }
+
+    public long getJournalSize() {
+        long size = 0;
+        for (FileUserRepository shard : shards) size += shard.getJournalSize();
+        return size;
+    }
+
+    public int getJournalRecordCount() {
+        int count = 0;
+        for (FileUserRepository shard : shards) count += shard.getJournalRecordCount();
+        return count;
+    }
+
+    /**
+     * @return sum of the shared journal versions applied by the shards, equal on nodes that are in step
+     */
+    public long getSharedVersion() {
+        long version = 0;
+        for (FileUserRepository shard : shards) version += shard.getSharedVersion();
+        return version;
+    }
+
+    /**
+     * @return milliseconds since the changes of other nodes were last read completely, 0 for unshared files
+     */
+    public long getMillisSincePoll() {
+        return cluster.isShared() ? System.currentTimeMillis() - lastPollMillis : 0;
+    }
+
+    @Override
+    public void insertUser(User user) {
+        shardFor(user.getUsername()).insertUser(user);
+    }
+
+    @Override
+    public User getUser(String username) {
+        return shardFor(username).getUser(username);
+    }
+
+    @Override
+    public User getUserByEmail(String email) {
+        for (FileUserRepository shard : shards) {
+            User user = shard.getUserByEmail(email);
+            if (user != null) return user;
+        }
+        return null;
+    }
+
+    @Override
+    public void updateUser(User user) {
+        shardFor(user.getUsername()).updateUser(user);
+    }
+
+    @Override
+    public User updateUser(String username, UnaryOperator<User> update) {
+        return shardFor(username).updateUser(username, update);
+    }
+
+    /**
+     * Rename a user, which may move it to another shard; both shards' locks for the user are then taken
+     * in shard order
+     */
+    @Override
+    public User renameUser(String username, String newUsername, UnaryOperator<User> update) {
+        int from = shardIndex(username, shards.length), to = shardIndex(newUsername, shards.length);
+        if (from == to) return shards[from].renameUser(username, newUsername, update);
+
+        String firstUsername = from < to ? username : newUsername, secondUsername = from < to ? newUsername : username;
+        FileUserRepository first = shards[Math.min(from, to)], second = shards[Math.max(from, to)];
+        first.lockUser(firstUsername);
+        try {
+            second.lockUser(secondUsername);
+            try {
+                return shards[from].renameLocked(shards[to], username, newUsername, update);
+            } finally {
+                second.unlockUser(secondUsername);
+            }
+        } finally {
+            first.unlockUser(firstUsername);
+        }
+    }
+
+    @Override
+    public void removeUser(String username) {
+        shardFor(username).removeUser(username);
+    }
+
+    @Override
+    public int getUserCount() {
+        int count = 0;
+        for (FileUserRepository shard : shards) count += shard.getUserCount();
+        return count;
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        List<User> users = new ArrayList<>(getUserCount());
+        for (FileUserRepository shard : shards) users.addAll(shard.getAllUsers());
+        return users;
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> action) {
+        for (FileUserRepository shard : shards) shard.forEachUser(action);
+    }
+
+    @Override
+    public List<User> findUserByKeyword(String keyword) {
+        List<User> users = new ArrayList<>();
+        for (FileUserRepository shard : shards) users.addAll(shard.findUserByKeyword(keyword));
+        return users;
+    }
+
+    @Override
+    public List<User> findUsersByAttribute(String name, String value) {
+        List<User> users = new ArrayList<>();
+        for (FileUserRepository shard : shards) users.addAll(shard.findUsersByAttribute(name, value));
+        return users;
+    }
+
+    /**
+     * Members shard by shard, each shard's in its own stable order; shards lying wholly before the page are
+     * skipped by their member count
+     */
+    @Override
+    public List<User> getGroupMembers(Collection<String> groupIds, boolean all, int firstResult, int maxResults) {
+        if (shards.length == 1) return shards[0].getGroupMembers(groupIds, all, firstResult, maxResults);
+
+        List<User> users = new ArrayList<>();
+        int skip = Math.max(0, firstResult);
+        for (FileUserRepository shard : shards) {
+            if (users.size() >= maxResults) break;
+            if (skip > 0) {
+                int count = shard.countGroupMembers(groupIds, all);
+                if (skip >= count) {
+                    skip -= count;
+                    continue;
+                }
+            }
+            users.addAll(shard.getGroupMembers(groupIds, all, skip, maxResults - users.size()));
+            skip = 0;
+        }
+        return users;
+    }
+
+    @Override
+    public boolean isGroupMember(String username, String groupId) {
+        return shardFor(username).isGroupMember(username, groupId);
+    }
+
+    @Override
+    public void removeGroup(String groupId) {
+        for (FileUserRepository shard : shards) shard.removeGroup(groupId);
+    }
+
+    /**
+     * Index the values of the given attributes for exact-match queries, replacing any earlier choice
+     */
+    public void indexAttributes(Collection<String> names) {
+        Arrays.stream(shards).parallel().forEach(shard -> shard.indexAttributes(names));
+        if (!names.isEmpty()) log.infov("Indexed attributes {0} of {1} users", names, getUserCount());
+    }
+
+    /**
+     * Page through the users of all shards by username. The first username of the page is found by a
+     * binary search in each shard on its rank among all shards, then the shards' runs from there on are
+     * merged for the page only, in O(s^2 log^2 n + s maxResults) for s shards whatever the offset.
+     */
+    @Override
+    public List<User> getUsers(int firstResult, int maxResults) {
+        if (shards.length == 1) return shards[0].getUsers(firstResult, maxResults);
+        int first = Math.max(0, firstResult);
+        if (maxResults <= 0 || first >= getUserCount()) return new ArrayList<>();
+
+        String firstUsername = usernameAtRank(first);
+        if (firstUsername == null) return new ArrayList<>(); // users were removed meanwhile
+        List<List<String>> runs = new ArrayList<>(shards.length);
+        int[] positions = new int[shards.length];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Comparator.comparing((Integer i) -> runs.get(i).get(positions[i])));
+        for (int i = 0; i < shards.length; i++) {
+            runs.add(shards[i].orderedUsernames(shards[i].rankOf(firstUsername), maxResults));
+            if (!runs.get(i).isEmpty()) heads.add(i);
+        }
+
+        List<User> users = new ArrayList<>();
+        while (!heads.isEmpty() && users.size() < maxResults) {
+            int i = heads.poll();
+            String username = runs.get(i).get(positions[i]++);
+            if (positions[i] < runs.get(i).size()) heads.add(i);
+            User user = shards[i].getUser(username);
+            if (user != null) users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * @return the username preceded by the given number of usernames over all shards, or null if there is
+     * none; each shard holds distinct usernames, so the rank over all shards grows with the position in one
+     */
+    private String usernameAtRank(int rank) {
+        for (FileUserRepository shard : shards) {
+            int low = 0, high = shard.getUserCount() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                List<String> at = shard.orderedUsernames(middle, 1);
+                if (at.isEmpty()) {
+                    high = middle - 1;
+                    continue;
+                }
+                int candidate = rankOverShards(at.get(0));
+                if (candidate == rank) return at.get(0);
+                if (candidate < rank) low = middle + 1;
+                else high = middle - 1;
+            }
+        }
+        return null;
+    }
+
+    private int rankOverShards(String username) {
+        int rank = 0;
+        for (FileUserRepository shard : shards) rank += shard.rankOf(username);
+        return rank;
+    }
+
+    /**
+     * Page through the keyword hits of all shards by username; each shard keeps only its first
+     * firstResult + maxResults hits in order, and those are merged, instead of sorting every hit
+     */
+    @Override
+    public List<User> findUserByKeyword(String keyword, int firstResult, int maxResults) {
+        if (shards.length == 1) return shards[0].findUserByKeyword(keyword, firstResult, maxResults);
+
+        int from = Math.max(0, firstResult);
+        int reach = (int) Math.min(Integer.MAX_VALUE, (long) from + Math.max(0, maxResults));
+        List<String> candidates = new ArrayList<>();
+        for (FileUserRepository shard : shards) {
+            candidates.addAll(OrderedUsernameIndex.smallest(shard.findUsernamesByKeyword(keyword), reach));
+        }
+        List<String> hits = OrderedUsernameIndex.smallest(candidates, reach);
+
+        List<User> users = new ArrayList<>();
+        for (String username : hits.subList(Math.min(from, hits.size()), hits.size())) {
+            User user = getUser(username);
+            if (user != null) users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * Hand the changes made so far to the persister, which writes them out now or later depending on the
+     * durability policy
+     */
+    @Override
+    public void persistUserDataToFile() throws IOException {
+        long start = System.nanoTime();
+        try {
+            persister.requestFlush();
+        } finally {
+            persistLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Split the users by shard and bulk load every shard in parallel, each ending with one snapshot
+     */
+    @Override
+    public void bulkLoad(Collection<User> users) throws IOException {
+        Map<FileUserRepository, List<User>> partitions = new IdentityHashMap<>();
+        for (User user : users) {
+            partitions.computeIfAbsent(shardFor(user.getUsername()), shard -> new ArrayList<>()).add(user);
+        }
+        forChangedShards(partitions::containsKey, shard -> shard.bulkLoad(partitions.get(shard)));
+    }
+
+    private interface ShardAction {
+        void run(FileUserRepository shard) throws IOException;
+    }
+
+    // run the action on every shard matching the filter, in parallel when there are several
+    private void forChangedShards(Predicate<FileUserRepository> filter, ShardAction action) throws IOException {
+        List<FileUserRepository> changed = new ArrayList<>();
+        for (FileUserRepository shard : shards) {
+            if (filter.test(shard)) changed.add(shard);
+        }
+        if (changed.size() <= 1 || persistExecutor == null) {
+            for (FileUserRepository shard : changed) action.run(shard);
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (FileUserRepository shard : changed) {
+            futures.add(persistExecutor.submit(() -> {
+                action.run(shard);
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while persisting user shards", e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void addChangeListener(UserChangeListener listener) {
+        for (FileUserRepository shard : shards) shard.addChangeListener(listener);
+    }
+}
@@ -0,0 +1,357 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of user mutations shared by several Keycloak nodes working on the same user file
+ */
+
+@JBossLog
+public class SharedUserJournal implements Closeable {
+
+    public static final String SUFFIX = ".changes";
+    public static final String LOCK_SUFFIX = ".lock";
+    private static final int MAGIC = 0x46555343; // "FUSC"
+    private static final int SEGMENT_HEADER_SIZE = 4 + 8 + 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int VERSION_SIZE = 8;
+    private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    private interface RecordHandler {
+        void accept(long version, UserJournal.Operation operation, byte[] payload) throws IOException;
+    }
+
+    private final Path path;
+    private final Path lockPath;
+    private final ReentrantLock processLock;
+    private FileChannel lockChannel;
+    private FileLock fileLock; // held while the process lock is, by writers and reloads
+    private FileChannel channel; // the log as of the epoch below, kept open across replacements
+    private long epoch;
+    private long position; // just past the last intact record read or written
+    private long version; // of the last record applied
+    private int recordCount;
+    private boolean closed;
+
+    public SharedUserJournal(String filePath) {
+        this.path = Paths.get(filePath).toAbsolutePath().normalize();
+        this.lockPath = Paths.get(path + LOCK_SUFFIX);
+        this.processLock = PROCESS_LOCKS.computeIfAbsent(path, key -> new ReentrantLock());
+    }
+
+    /**
+     * Load the snapshot and replay the log under the lock, so no other node compacts in between; the log
+     * is created when there is none
+     *
+     * @param loadSnapshot reads the snapshot into the repository
+     * @param handler      applies each record in version order
+     * @throws IOException
+     */
+    public void open(Action loadSnapshot, UserJournal.ReplayHandler handler) throws IOException {
+        lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        processLock.lock();
+        try {
+            fileLock = lockChannel.lock();
+            if (!Files.exists(path)) writeSegment(0);
+            reload(loadSnapshot, handler);
+            log.infov("Replayed shared journal {0} up to version {1}", path, version);
+        } finally {
+            releaseFileLock();
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * Take the lock for writing and apply what other nodes have written meanwhile; nested calls by the
+     * holder only count
+     *
+     * @param handler applies records of other nodes
+     * @param reload  brings the repository in line with the snapshot, when records were missed
+     * @throws IOException
+     */
+    public void lock(UserJournal.ReplayHandler handler, Action reload) throws IOException {
+        processLock.lock();
+        if (processLock.getHoldCount() > 1) return;
+        try {
+            if (closed) throw new IOException("Shared journal " + path + " is closed");
+            fileLock = lockChannel.lock();
+            if (!catchUp(handler)) reload(reload, handler);
+        } catch (IOException | RuntimeException e) {
+            releaseFileLock();
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    public void unlock() {
+        if (processLock.getHoldCount() == 1) releaseFileLock();
+        processLock.unlock();
+    }
+
+    private void releaseFileLock() {
+        if (fileLock == null) return;
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileLock = null;
+    }
+
+    /**
+     * Apply the records other nodes have written since the last call, reloading the snapshot under the
+     * lock when records were missed
+     */
+    public void poll(UserJournal.ReplayHandler handler, Action reload) throws IOException {
+        processLock.lock();
+        try {
+            if (closed || catchUp(handler)) return;
+            boolean locked = fileLock == null;
+            if (locked) fileLock = lockChannel.lock();
+            try {
+                reload(reload, handler);
+            } finally {
+                if (locked) releaseFileLock();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * Append a record versioned after the last one; requires the lock. It is visible to other nodes on
+     * return and reaches the disk on the next {@link #sync()}.
+     */
+    public void append(UserJournal.Operation operation, byte[] payload) throws IOException {
+        if (fileLock == null || !processLock.isHeldByCurrentThread())
+            throw new IllegalStateException("Appending to shared journal " + path + " without holding its lock");
+        if (channel.size() > position) {
+            log.warnv("Discarding {0} bytes of an incomplete record in {1}", channel.size() - position, path);
+            channel.truncate(position);
+        }
+        byte[] record = new byte[VERSION_SIZE + 1 + payload.length];
+        ByteBuffer.wrap(record).putLong(version + 1).put((byte) operation.ordinal()).put(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record);
+        buffer.flip();
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        position = at;
+        version++;
+        recordCount++;
+    }
+
+    /**
+     * Write the snapshot and replace the log by an empty one; requires the lock
+     *
+     * @param writeSnapshot writes the repository's users, which include every record read so far
+     * @param bumpVersion   whether the snapshot holds changes that were never logged, so other nodes must
+     *                      reload it
+     * @throws IOException
+     */
+    public void compact(Action writeSnapshot, boolean bumpVersion) throws IOException {
+        if (fileLock == null || !processLock.isHeldByCurrentThread())
+            throw new IllegalStateException("Compacting shared journal " + path + " without holding its lock");
+        writeSnapshot.run();
+        writeSegment(bumpVersion ? version + 1 : version);
+        openSegment();
+    }
+
+    public void sync() throws IOException {
+        processLock.lock();
+        try {
+            if (!closed) channel.force(false);
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    public int getRecordCount() {
+        processLock.lock();
+        try {
+            return recordCount;
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * @return version of the last record applied or written
+     */
+    public long getVersion() {
+        processLock.lock();
+        try {
+            return version;
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // read the records appended to the log since the last call, then follow a compaction; false when records were missed
+    private boolean catchUp(UserJournal.ReplayHandler handler) throws IOException {
+        readRecords(handler);
+        try (FileChannel current = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (readHeader(current, path)[0] == epoch) return true;
+        }
+        readRecords(handler); // the replaced log may have grown before it was sealed by the compaction
+        long applied = version;
+        openSegment();
+        if (version != applied) {
+            log.infov("Shared journal {0} was compacted at version {1} while at version {2}, reloading the snapshot",
+                    path, version, applied);
+            return false;
+        }
+        readRecords(handler);
+        return true;
+    }
+
+    private void reload(Action loadSnapshot, UserJournal.ReplayHandler handler) throws IOException {
+        loadSnapshot.run();
+        openSegment();
+        readRecords(handler);
+    }
+
+    // switch to the log currently at the path, positioned before its first record
+    private void openSegment() throws IOException {
+        FileChannel next = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long[] header;
+        try {
+            header = readHeader(next, path);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        if (channel != null) channel.close();
+        channel = next;
+        epoch = header[0];
+        version = header[1];
+        position = SEGMENT_HEADER_SIZE;
+        recordCount = 0;
+    }
+
+    private void readRecords(UserJournal.ReplayHandler handler) throws IOException {
+        position = readRecords(channel, position, (recordVersion, operation, payload) -> {
+            recordCount++;
+            if (recordVersion <= version) return;
+            if (recordVersion != version + 1)
+                log.warnv("Shared journal {0} skips from version {1} to {2}", path, version, recordVersion);
+            version = recordVersion;
+            try {
+                handler.apply(operation, payload);
+            } catch (IOException e) {
+                log.warnv("Skipping unreadable record {0} of {1}: {2}", recordVersion, path, e.getMessage());
+            }
+        });
+    }
+
+    // write an empty log with a new epoch and swap it in atomically
+    private void writeSegment(long baseVersion) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC).putLong(ThreadLocalRandom.current().nextLong()).putLong(baseVersion);
+        header.flip();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) out.write(header);
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Replay every intact record of a log, e.g. to redistribute its users while no node is running
+     */
+    public static void replay(Path segment, UserJournal.ReplayHandler handler) throws IOException {
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            readHeader(in, segment);
+            readRecords(in, SEGMENT_HEADER_SIZE, (recordVersion, operation, payload) -> handler.apply(operation, payload));
+        }
+    }
+
+    // epoch and base version
+    private static long[] readHeader(FileChannel in, Path segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        if (!readFully(in, header, 0) || header.getInt(0) != MAGIC)
+            throw new IOException(segment + " is not a shared user journal");
+        return new long[]{header.getLong(4), header.getLong(12)};
+    }
+
+    // hand every intact record from the position on to the handler; returns the position after the last one
+    private static long readRecords(FileChannel in, long position, RecordHandler handler) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (!readFully(in, header, position)) break;
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length < VERSION_SIZE + 1 || length > in.size() - position - RECORD_HEADER_SIZE) break;
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(in, body, position + RECORD_HEADER_SIZE)) break;
+            byte[] record = body.array();
+            if (checksum != checksum(record)) break;
+            UserJournal.Operation operation = UserJournal.Operation.of(record[VERSION_SIZE]);
+            if (operation == null) break;
+
+            position += RECORD_HEADER_SIZE + length;
+            handler.accept(body.getLong(0), operation, Arrays.copyOfRange(record, VERSION_SIZE + 1, length));
+        }
+        return position;
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        processLock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            releaseFileLock();
+            if (channel != null) channel.close();
+            if (lockChannel != null) lockChannel.close();
+        } finally {
+            processLock.unlock();
+        }
+    }
+}
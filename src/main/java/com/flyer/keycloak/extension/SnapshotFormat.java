@@ -0,0 +1,85 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * On-disk layouts of the user repository snapshot
+ */
+
+public enum SnapshotFormat {
+
+    /** JSON array of users, the original userDB.json layout */
+    JSON {
+        @Override
+        public void write(Path path, Collection<User> users, ObjectMapper objectMapper) throws IOException {
+            objectMapper.writeValue(path.toFile(), users);
+        }
+    },
+
+    /** one JSON user object per line, which can be split and parsed in parallel */
+    JSON_LINES {
+        @Override
+        public void write(Path path, Collection<User> users, ObjectMapper objectMapper) throws IOException {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+                for (User user : users) {
+                    out.write(objectMapper.writeValueAsBytes(user));
+                    out.write('\n');
+                }
+            }
+        }
+    },
+
+    /** length-prefixed binary records, see {@link BinaryUserSnapshot} */
+    BINARY {
+        @Override
+        public void write(Path path, Collection<User> users, ObjectMapper objectMapper) throws IOException {
+            BinaryUserSnapshot.write(path, users);
+        }
+    };
+
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    public abstract void write(Path path, Collection<User> users, ObjectMapper objectMapper) throws IOException;
+
+    /**
+     * Write to a temporary file next to the target, force it to disk and rename it over the target, so a
+     * crash leaves either the old or the new snapshot and never a torn one
+     */
+    public void writeAtomically(Path path, Collection<User> users, ObjectMapper objectMapper) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        write(temp, users, objectMapper);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Tell the layout of an existing file from its content, or of a new file from its extension
+     */
+    public static SnapshotFormat detect(Path path) throws IOException {
+        if (BinaryUserSnapshot.isBinary(path)) return BINARY;
+        return UserFileLoader.isJsonLines(path) ? JSON_LINES : JSON;
+    }
+
+    public static SnapshotFormat fromPath(Path path) {
+        String name = path.toString();
+        if (name.endsWith(BinaryUserSnapshot.EXTENSION)) return BINARY;
+        return name.endsWith(UserFileLoader.JSON_LINES_EXTENSION) ? JSON_LINES : JSON;
+    }
+}
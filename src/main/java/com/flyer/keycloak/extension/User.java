@@ -1,9 +1,23 @@
 package com.flyer.keycloak.extension;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
 /**
  * Custom user model
  *
@@ -22,8 +36,13 @@ public class User {
     private String firstName;
     private String lastName;
     private String email;
-    private String password;
+    @JsonProperty
+    private String password; // encoded hash, see HashUtil
     private String favouriteLine; // custom attribute
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private SortedMap<String, List<String>> attributes; // null when there are none
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private SortedSet<String> groups; // group ids, null when there are none
 
     public User(String firstName, String lastName, String email, String favouriteLine) {
         this.firstName = firstName;
@@ -34,7 +53,126 @@ public class User {
         setPassword(this.username);
     }
 
+    public User(User user) {
+        this.username = user.username;
+        this.firstName = user.firstName;
+        this.lastName = user.lastName;
+        this.email = user.email;
+        this.password = user.password;
+        this.favouriteLine = user.favouriteLine;
+        setAttributes(user.attributes);
+        setGroups(user.groups);
+    }
+
+    public Map<String, List<String>> getAttributes() {
+        return attributes == null ? Collections.emptyMap() : Collections.unmodifiableMap(attributes);
+    }
+
+    public void setAttributes(Map<String, List<String>> attributes) {
+        this.attributes = null;
+        if (attributes != null) attributes.forEach(this::setAttribute);
+    }
+
+    /**
+     * @return values of the attribute, empty when it is not set; {@value FileUserStorageProvider#FAVOURITE_LINE_ATTRIBUTE} is the favourite line field
+     */
+    public List<String> getAttribute(String name) {
+        if (FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE.equals(name)) {
+            return favouriteLine == null ? Collections.emptyList() : Collections.singletonList(favouriteLine);
+        }
+        List<String> values = attributes == null ? null : attributes.get(name);
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Set the values of an attribute, removing it when there are none
+     */
+    public void setAttribute(String name, List<String> values) {
+        if (FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE.equals(name)) {
+            favouriteLine = values == null || values.isEmpty() ? null : values.get(0);
+            return;
+        }
+        if (values == null || values.isEmpty()) {
+            if (attributes != null && attributes.remove(name) != null && attributes.isEmpty()) attributes = null;
+            return;
+        }
+        if (attributes == null) attributes = new TreeMap<>();
+        attributes.put(name, new ArrayList<>(values));
+    }
+
+    public Set<String> getGroups() {
+        return groups == null ? Collections.emptySet() : Collections.unmodifiableSet(groups);
+    }
+
+    public void setGroups(Collection<String> groups) {
+        this.groups = groups == null || groups.isEmpty() ? null : new TreeSet<>(groups);
+    }
+
+    /**
+     * @return whether the user was not yet a member of the group
+     */
+    public boolean joinGroup(String groupId) {
+        if (groups == null) groups = new TreeSet<>();
+        return groups.add(groupId);
+    }
+
+    /**
+     * @return whether the user was a member of the group
+     */
+    public boolean leaveGroup(String groupId) {
+        if (groups == null || !groups.remove(groupId)) return false;
+        if (groups.isEmpty()) groups = null;
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a hash over every persisted field, telling cheaply whether a record changed on disk
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (String field : new String[]{username, firstName, lastName, email, password, favouriteLine}) {
+            hash = fingerprint(hash, field);
+        }
+        if (attributes != null) {
+            for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                hash = fingerprint(hash, attribute.getKey());
+                for (String value : attribute.getValue()) {
+                    hash = fingerprint(hash, value);
+                }
+                hash = (hash ^ 0x10002) * 0x100000001b3L; // end of the values
+            }
+        }
+        if (groups != null) {
+            hash = (hash ^ 0x10003) * 0x100000001b3L; // start of the groups
+            for (String group : groups) {
+                hash = fingerprint(hash, group);
+            }
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return (hash ^ (value == null ? 0x10000 : 0x10001)) * 0x100000001b3L;
+    }
+
+    /**
+     * Hash and set a plain password
+     */
+    @JsonIgnore
     public void setPassword(String password) {
         this.password = HashUtil.hashString(password);
     }
+
+    /**
+     * Set an already hashed password, as read back from the file
+     */
+    @JsonProperty("password")
+    public void setPasswordHash(String passwordHash) {
+        this.password = passwordHash;
+    }
 }
@@ -0,0 +1,107 @@
+package com.flyer.keycloak.extension;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Node-wide cache of the per-user data behind the Keycloak UserModel adapters
+ */
+
+public class UserAdapterCache implements UserChangeListener {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_SECONDS = 300;
+
+    private final long ttlMillis;
+    private final Map<String, Map<String, CachedAttributes>> entries; // username -> realm id -> attributes, guarded by this
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public UserAdapterCache(int maxEntries, long ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000;
+        this.entries = new LinkedHashMap<String, Map<String, CachedAttributes>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, CachedAttributes>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param loader reads the attributes from federated storage on a miss
+     * @return a private copy of the user's federated attributes in the realm
+     */
+    public MultivaluedHashMap<String, String> getAttributes(String realmId, String username,
+                                                           Supplier<MultivaluedHashMap<String, String>> loader) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Map<String, CachedAttributes> realms = entries.get(username);
+            CachedAttributes cached = realms == null ? null : realms.get(realmId);
+            if (cached != null && now - cached.loadedAt < ttlMillis) {
+                hits.increment();
+                return new MultivaluedHashMap<>(cached.attributes);
+            }
+        }
+
+        misses.increment();
+        long generation = invalidations.get();
+        MultivaluedHashMap<String, String> attributes = loader.get();
+        synchronized (this) {
+            // an invalidation racing with the load may mean the loaded copy is already stale
+            if (generation == invalidations.get()) {
+                entries.computeIfAbsent(username, key -> new LinkedHashMap<>())
+                        .put(realmId, new CachedAttributes(new MultivaluedHashMap<>(attributes), now));
+            }
+        }
+        return attributes;
+    }
+
+    public synchronized void invalidate(String username) {
+        invalidations.incrementAndGet();
+        entries.remove(username);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations.incrementAndGet();
+        entries.clear();
+    }
+
+    @Override
+    public void userChanged(String username) {
+        invalidate(username);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private static class CachedAttributes {
+        final MultivaluedHashMap<String, String> attributes;
+        final long loadedAt;
+
+        CachedAttributes(MultivaluedHashMap<String, String> attributes, long loadedAt) {
+            this.attributes = attributes;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk import and export of users, for migrations
+ */
+
+@JBossLog
+public class UserBulkTransfer implements Closeable {
+
+    public static final String CSV_EXTENSION = ".csv";
+    static final List<String> CSV_COLUMNS = Arrays.asList(
+            "username", "firstName", "lastName", "email", "passwordHash", "favouriteLine", "attributes", "groups");
+    private static final TypeReference<Map<String, List<String>>> ATTRIBUTES_TYPE = new TypeReference<Map<String, List<String>>>() {
+    };
+    private static final TypeReference<List<String>> GROUPS_TYPE = new TypeReference<List<String>>() {
+    };
+    private static final int BATCH_SIZE = 256;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism number of threads parsing and hashing
+     */
+    public UserBulkTransfer(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public static boolean isCsv(Path path) {
+        return path.toString().toLowerCase(Locale.ROOT).endsWith(CSV_EXTENSION);
+    }
+
+    /**
+     * Read all users from the input and bulk load them into the repository
+     *
+     * @return number of users imported
+     * @throws IOException
+     */
+    public int importUsers(Path input, UserRepository repository) throws IOException {
+        long start = System.nanoTime();
+        Collection<User> users = readUsers(input);
+        long readMillis = (System.nanoTime() - start) / 1_000_000;
+        repository.bulkLoad(users);
+        log.infov("Imported {0} users from {1}: read and hashed in {2} ms, loaded in {3} ms", users.size(), input,
+                readMillis, (System.nanoTime() - start) / 1_000_000 - readMillis);
+        return users.size();
+    }
+
+    /**
+     * Parse the input, hashing plain passwords on the pool; when a username repeats the last line wins
+     *
+     * @return users in input order
+     * @throws IOException
+     */
+    public Collection<User> readUsers(Path input) throws IOException {
+        boolean csv = isCsv(input);
+        Map<String, User> users = new LinkedHashMap<>();
+        Deque<ForkJoinTask<List<User>>> inFlight = new ArrayDeque<>();
+        AtomicInteger rejected = new AtomicInteger();
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            int[] lineNumber = new int[1];
+            List<String> header = null;
+            if (csv) {
+                String record = readRecord(reader, true, lineNumber);
+                if (record == null) return users.values();
+                header = parseCsvLine(record);
+            }
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            List<Integer> batchLines = new ArrayList<>(BATCH_SIZE); // line number each record starts at
+            String record;
+            while ((record = readRecord(reader, csv, lineNumber)) != null) {
+                batch.add(record);
+                batchLines.add(lineNumber[0] - lineCount(record) + 1);
+                if (batch.size() == BATCH_SIZE) {
+                    inFlight.add(submit(batch, batchLines, header, input, rejected));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    batchLines = new ArrayList<>(BATCH_SIZE);
+                    while (inFlight.size() > 2 * pool.getParallelism()) collect(inFlight.poll(), users);
+                }
+            }
+            if (!batch.isEmpty()) inFlight.add(submit(batch, batchLines, header, input, rejected));
+            while (!inFlight.isEmpty()) collect(inFlight.poll(), users);
+        }
+        if (rejected.get() > 0) log.warnv("Skipped {0} malformed lines of {1}", rejected.get(), input);
+        return users.values();
+    }
+
+    /**
+     * Read the next line or, for CSV, the next record, which spans several lines where a quoted field holds
+     * line breaks
+     *
+     * @return the record without its final line break, or null at the end of the input
+     */
+    private static String readRecord(BufferedReader reader, boolean csv, int[] lineNumber) throws IOException {
+        String line = reader.readLine();
+        if (line == null) return null;
+        lineNumber[0]++;
+        if (!csv || quoteCount(line) % 2 == 0) return line;
+
+        StringBuilder record = new StringBuilder(line);
+        int quotes = quoteCount(line);
+        while (quotes % 2 != 0 && (line = reader.readLine()) != null) { // an odd count leaves a field open
+            lineNumber[0]++;
+            record.append('\n').append(line);
+            quotes += quoteCount(line);
+        }
+        return record.toString();
+    }
+
+    private static int quoteCount(String line) {
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') count++;
+        }
+        return count;
+    }
+
+    private static int lineCount(String record) {
+        int count = 1;
+        for (int i = 0; i < record.length(); i++) {
+            if (record.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+
+    private ForkJoinTask<List<User>> submit(List<String> lines, List<Integer> lineNumbers, List<String> header, Path input,
+                                            AtomicInteger rejected) {
+        return pool.submit(() -> {
+            List<User> users = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.trim().isEmpty()) continue;
+                try {
+                    users.add(header != null ? fromCsv(header, line) : fromJsonLine(line));
+                } catch (IOException | IllegalArgumentException e) {
+                    rejected.incrementAndGet();
+                    log.warnv("Skipping line {0} of {1}: {2}", lineNumbers.get(i), input, e.getMessage());
+                }
+            }
+            return users;
+        });
+    }
+
+    private static void collect(ForkJoinTask<List<User>> task, Map<String, User> users) throws IOException {
+        try {
+            for (User user : task.get()) users.put(user.getUsername(), user);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing users", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private User fromCsv(List<String> header, String line) throws IOException {
+        List<String> fields = parseCsvLine(line);
+        if (fields.size() != header.size())
+            throw new IllegalArgumentException("expected " + header.size() + " fields but found " + fields.size());
+
+        User user = new User();
+        String plainPassword = null;
+        for (int i = 0; i < header.size(); i++) {
+            String value = fields.get(i).isEmpty() ? null : fields.get(i);
+            switch (header.get(i)) {
+                case "username":
+                    user.setUsername(value);
+                    break;
+                case "firstName":
+                    user.setFirstName(value);
+                    break;
+                case "lastName":
+                    user.setLastName(value);
+                    break;
+                case "email":
+                    user.setEmail(value);
+                    break;
+                case "password":
+                    plainPassword = value;
+                    break;
+                case "passwordHash":
+                    user.setPasswordHash(value);
+                    break;
+                case "favouriteLine":
+                    user.setFavouriteLine(value);
+                    break;
+                case "attributes":
+                    if (value != null) user.setAttributes(objectMapper.readValue(value, ATTRIBUTES_TYPE));
+                    break;
+                case "groups":
+                    if (value != null) user.setGroups(objectMapper.readValue(value, GROUPS_TYPE));
+                    break;
+                default:
+                    // unknown columns are ignored
+            }
+        }
+        return complete(user, plainPassword);
+    }
+
+    private User fromJsonLine(String line) throws IOException {
+        JsonNode node = objectMapper.readTree(line);
+        if (!node.isObject()) throw new IllegalArgumentException("expected a JSON object");
+        JsonNode plainPassword = ((ObjectNode) node).remove("plainPassword");
+        User user = objectMapper.treeToValue(node, User.class);
+        return complete(user, plainPassword == null || plainPassword.isNull() ? null : plainPassword.asText());
+    }
+
+    // default the username to the email like the User constructor does, and hash the plain password
+    private static User complete(User user, String plainPassword) {
+        if (user.getUsername() == null && user.getEmail() != null) user.setUsername(user.getEmail().toLowerCase());
+        if (user.getUsername() == null) throw new IllegalArgumentException("neither username nor email given");
+        if (plainPassword != null) user.setPassword(plainPassword);
+        return user;
+    }
+
+    /**
+     * Write every user of the repository to the output, as CSV when it ends with {@value #CSV_EXTENSION} and
+     * as JSON lines otherwise. Users are streamed from the repository without collecting them first.
+     *
+     * @return number of users exported
+     * @throws IOException
+     */
+    public int exportUsers(UserRepository repository, Path output) throws IOException {
+        boolean csv = isCsv(output);
+        AtomicInteger count = new AtomicInteger();
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            if (csv) writeCsvLine(writer, CSV_COLUMNS);
+            repository.forEachUser(user -> {
+                try {
+                    if (csv) {
+                        writeCsvLine(writer, Arrays.asList(user.getUsername(), user.getFirstName(), user.getLastName(),
+                                user.getEmail(), user.getPassword(), user.getFavouriteLine(),
+                                user.getAttributes().isEmpty() ? null : objectMapper.writeValueAsString(user.getAttributes()),
+                                user.getGroups().isEmpty() ? null : objectMapper.writeValueAsString(user.getGroups())));
+                    } else {
+                        writer.write(objectMapper.writeValueAsString(user));
+                        writer.newLine();
+                    }
+                    count.incrementAndGet();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        log.infov("Exported {0} users to {1}", count.get(), output);
+        return count.get();
+    }
+
+    /**
+     * Split a CSV record into its fields; quoted fields may hold commas, doubled quotes and line breaks
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quoted field");
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static void writeCsvLine(BufferedWriter writer, List<String> fields) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) writer.write(',');
+            String field = fields.get(i);
+            if (field == null) continue;
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(field.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(field);
+            }
+        }
+        writer.newLine();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Import into or export from a user file while Keycloak is stopped
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: UserBulkTransfer import|export <userFile> <csv or jsonl file> [shardCount]");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[1]);
+        Path data = Paths.get(args[2]);
+        int shardCount = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        try (ShardedUserRepository repository = new ShardedUserRepository(file, shardCount, SnapshotFormat.fromPath(file),
+                true, FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL, DurabilityPolicy.SYNC, UserStore.Type.MAP,
+                ClusterPolicy.STANDALONE);
+             UserBulkTransfer transfer = new UserBulkTransfer(Runtime.getRuntime().availableProcessors())) {
+            if (args[0].equals("import")) {
+                transfer.importUsers(data, repository);
+            } else {
+                transfer.exportUsers(repository, data);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.flyer.keycloak.extension;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring of the recent user changes of a component, numbered so a synchronization can skip unchanged users
+ */
+
+public class UserChangeFeed implements UserChangeListener {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final String[] usernames; // by (sequence - 1) % capacity
+    private final long[] times;
+    private long sequence; // of the last change, 0 before the first
+    private long lastTime;
+    private long completeAfter; // changes up to this time may be missing, guarded by this
+
+    public UserChangeFeed(int capacity) {
+        this.usernames = new String[Math.max(1, capacity)];
+        this.times = new long[usernames.length];
+        this.completeAfter = System.currentTimeMillis() - 1;
+    }
+
+    @Override
+    public synchronized void userChanged(String username) {
+        lastTime = Math.max(lastTime, System.currentTimeMillis()); // the clock may step back, the feed must not
+        int slot = (int) (sequence++ % usernames.length);
+        if (usernames[slot] != null) completeAfter = Math.max(completeAfter, times[slot]);
+        usernames[slot] = username;
+        times[slot] = lastTime;
+    }
+
+    /**
+     * @return sequence number of the last change, 0 if there was none
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return sequence number after which the changes made at or after the time start, or -1 when changes
+     * made since then may have been missed
+     */
+    public synchronized long sequenceAt(long timeMillis) {
+        if (timeMillis <= completeAfter) return -1;
+        long low = oldestSequence(), high = sequence; // first change at or after the time is in [low, high + 1]
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (times[slot(middle)] < timeMillis) low = middle + 1;
+            else high = middle - 1;
+        }
+        return low - 1;
+    }
+
+    /**
+     * @return usernames of up to {@code max} changes following the given sequence number, in the order they
+     * were made, or null when some of those changes have been dropped; the next call continues at the
+     * given sequence number plus the size of the list
+     */
+    public synchronized List<String> changesSince(long since, int max) {
+        if (since < oldestSequence() - 1) return null;
+        List<String> changes = new ArrayList<>((int) Math.min(max, sequence - since));
+        for (long next = since + 1; next <= sequence && changes.size() < max; next++) {
+            changes.add(usernames[slot(next)]);
+        }
+        return changes;
+    }
+
+    private long oldestSequence() {
+        return Math.max(1, sequence - usernames.length + 1);
+    }
+
+    private int slot(long sequence) {
+        return (int) ((sequence - 1) % usernames.length);
+    }
+}
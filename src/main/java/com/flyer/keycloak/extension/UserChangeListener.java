@@ -0,0 +1,13 @@
+package com.flyer.keycloak.extension;
+
+/**
+ * Callback for components that keep derived per-user state and must drop it when a user record changes
+ */
+
+public interface UserChangeListener {
+
+    /**
+     * Invoked after the user has been inserted, updated or removed in the repository
+     */
+    void userChanged(String username);
+}
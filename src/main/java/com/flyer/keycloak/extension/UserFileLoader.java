@@ -0,0 +1,212 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Streaming loader for user data files
+ */
+
+@JBossLog
+public class UserFileLoader {
+
+    public static final String JSON_LINES_EXTENSION = ".jsonl";
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    private final ObjectMapper objectMapper;
+
+    public UserFileLoader(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Tell whether a file holds JSON lines, judged by its first non-blank byte or, for an empty or
+     * missing file, by its extension
+     */
+    public static boolean isJsonLines(Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (!Character.isWhitespace(b)) return b != '[';
+                }
+            }
+        }
+        return path.toString().endsWith(JSON_LINES_EXTENSION);
+    }
+
+    /**
+     * Stream every user in the file into the sink, which must be thread safe for JSON lines input
+     *
+     * @return number of users read
+     * @throws IOException
+     */
+    public int load(Path path, Consumer<User> sink) throws IOException {
+        long start = System.nanoTime();
+        LongAdder allocated = new LongAdder(); // by the parallel chunk parsers, which measure their own threads
+        long allocatedBefore = allocatedBytes();
+
+        SnapshotFormat format = SnapshotFormat.detect(path);
+        int count;
+        switch (format) {
+            case BINARY:
+                count = BinaryUserSnapshot.read(path, sink);
+                break;
+            case JSON_LINES:
+                count = loadJsonLines(path, sink, allocated);
+                break;
+            default:
+                count = loadJsonArray(path, sink);
+        }
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        if (allocatedBefore < 0) {
+            log.infov("Loaded {0} users from {1} ({2}) in {3} ms", count, path, format, elapsedMillis);
+        } else {
+            allocated.add(allocatedBytes() - allocatedBefore);
+            log.infov("Loaded {0} users from {1} ({2}) in {3} ms, allocating {4} MB", count, path, format, elapsedMillis,
+                    allocated.sum() >> 20);
+        }
+        return count;
+    }
+
+    /**
+     * Read a user file together with the mutations still sitting in its journal or shared journal, as the
+     * repository would see them after opening it
+     *
+     * @return users by username
+     * @throws IOException
+     */
+    public Map<String, User> loadWithJournal(Path path) throws IOException {
+        Map<String, User> users = new ConcurrentHashMap<>();
+        load(path, user -> users.put(user.getUsername(), user));
+
+        UserJournal.ReplayHandler replay = (operation, payload) -> {
+            if (operation == UserJournal.Operation.REMOVE) {
+                users.remove(new String(payload, StandardCharsets.UTF_8));
+            } else {
+                User user = objectMapper.readValue(payload, User.class);
+                users.put(user.getUsername(), user);
+            }
+        };
+        Path journalPath = Paths.get(path + FileUserRepository.JOURNAL_SUFFIX);
+        if (Files.exists(journalPath)) {
+            try (UserJournal journal = new UserJournal(journalPath.toString())) {
+                journal.open(replay);
+            }
+        }
+        Path sharedJournalPath = Paths.get(path + SharedUserJournal.SUFFIX);
+        if (Files.exists(sharedJournalPath)) SharedUserJournal.replay(sharedJournalPath, replay);
+        return users;
+    }
+
+    private int loadJsonArray(Path path, Consumer<User> sink) throws IOException {
+        int count = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(Files.newInputStream(path))) {
+            JsonToken token = parser.nextToken();
+            if (token == null) return 0;
+            if (token != JsonToken.START_ARRAY)
+                throw new IOException("Expected a JSON array of users in " + path + " but found " + token);
+
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                sink.accept(objectMapper.readValue(parser, User.class));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int loadJsonLines(Path path, Consumer<User> sink, LongAdder allocated) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        Thread caller = Thread.currentThread();
+        ObjectReader reader = objectMapper.readerFor(User.class);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> chunks = splitAtLineBoundaries(channel);
+            try {
+                chunks.parallelStream().forEach(chunk -> {
+                    long allocatedBefore = allocatedBytes();
+                    try {
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                        try (MappingIterator<User> users = reader.readValues(new ByteBufferBackedInputStream(buffer))) {
+                            while (users.hasNextValue()) {
+                                sink.accept(users.nextValue());
+                                count.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        // the calling thread measures itself, parsing chunks with it would count them twice
+                        if (allocatedBefore >= 0 && Thread.currentThread() != caller) allocated.add(allocatedBytes() - allocatedBefore);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return count.get();
+    }
+
+    /**
+     * Cut the file into about one chunk per core, moving each cut to just past the next line feed
+     *
+     * @return list of [start, end) byte ranges
+     */
+    private List<long[]> splitAtLineBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int cores = Runtime.getRuntime().availableProcessors();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, size / cores + 1);
+
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            while (end < size) {
+                one.clear();
+                channel.read(one, end++);
+                if (one.get(0) == '\n') break;
+            }
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or -1 where the JVM does not tell; unlike heap
+     * pool usage, this is not mixed up with what other threads allocate meanwhile
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        if (!allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled()) return -1;
+        return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,94 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background watcher reporting changes made to user files by other processes
+ */
+
+@JBossLog
+public class UserFileWatcher implements Closeable {
+
+    private static final long SETTLE_MILLIS = 500;
+
+    private final Map<Path, Runnable> callbacks = new HashMap<>();
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param callbacks what to run when each file has changed
+     */
+    public UserFileWatcher(Map<Path, Runnable> callbacks) throws IOException {
+        callbacks.forEach((file, callback) -> this.callbacks.put(file.toAbsolutePath(), callback));
+        Set<Path> directories = new HashSet<>();
+        for (Path file : this.callbacks.keySet()) directories.add(file.getParent());
+
+        this.watchService = directories.iterator().next().getFileSystem().newWatchService();
+        for (Path directory : directories) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        Path first = this.callbacks.keySet().iterator().next();
+        this.thread = new Thread(this::watch, "user-file-watcher-" + first.getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+        log.infov("Watching {0} for external changes", this.callbacks.keySet());
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collectChanges(watchService.take(), changed);
+                if (changed.isEmpty()) continue;
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collectChanges(key, changed);
+                }
+                for (Path file : changed) {
+                    try {
+                        callbacks.get(file).run();
+                    } catch (RuntimeException e) {
+                        log.warnv(e, "Failed to apply external changes of {0}", file);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.infov("Stopped watching {0}", callbacks.keySet());
+        }
+    }
+
+    // drain the key's events, noting which of the watched files they were about
+    private void collectChanges(WatchKey key, Set<Path> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.addAll(callbacks.keySet());
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if (callbacks.containsKey(file)) changed.add(file);
+        }
+        key.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,163 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of user mutations
+ */
+
+@JBossLog
+public class UserJournal implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+    static final String SEALED_SUFFIX = ".1";
+
+    public enum Operation {
+        INSERT, UPDATE, REMOVE;
+
+        static Operation of(byte code) {
+            Operation[] values = values();
+            return code >= 0 && code < values.length ? values[code] : null;
+        }
+    }
+
+    public interface ReplayHandler {
+        void apply(Operation operation, byte[] payload) throws IOException;
+    }
+
+    private final Path path;
+    private final Path sealedPath;
+    private FileChannel channel;
+    private int recordCount;
+
+    public UserJournal(String filePath) {
+        this.path = Paths.get(filePath);
+        this.sealedPath = Paths.get(filePath + SEALED_SUFFIX);
+    }
+
+    /**
+     * Replay the sealed segment left behind by an interrupted compaction, then the active log, and open
+     * the active log for appending right after its last intact record
+     *
+     * @param handler callback receiving each intact record in write order
+     * @throws IOException
+     */
+    public synchronized void open(ReplayHandler handler) throws IOException {
+        if (Files.exists(sealedPath)) {
+            log.infov("Replaying sealed journal segment {0}", sealedPath);
+            replay(sealedPath, handler);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = replay(path, handler);
+        if (validLength < channel.size()) {
+            log.warnv("Discarding {0} trailing bytes of incomplete journal record in {1}", channel.size() - validLength, path);
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+    }
+
+    private long replay(Path segment, ReplayHandler handler) throws IOException {
+        long validLength = 0;
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (true) {
+                header.clear();
+                if (!readFully(in, header)) break;
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 1 || length > in.size() - in.position()) break;
+
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (!readFully(in, body)) break;
+                byte[] record = body.array();
+                if (checksum != checksum(record)) break;
+
+                Operation operation = Operation.of(record[0]);
+                if (operation == null) break;
+                byte[] payload = new byte[length - 1];
+                System.arraycopy(record, 1, payload, 0, payload.length);
+                handler.apply(operation, payload);
+
+                validLength = in.position();
+                if (segment.equals(path)) recordCount++;
+            }
+        }
+        return validLength;
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a mutation record; it reaches the OS on return and the disk on the next {@link #sync()}
+     */
+    public synchronized void append(Operation operation, byte[] payload) throws IOException {
+        byte[] record = new byte[payload.length + 1];
+        record[0] = (byte) operation.ordinal();
+        System.arraycopy(payload, 0, record, 1, payload.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        recordCount++;
+    }
+
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Seal the active log and start an empty one. The sealed segment must be kept until a snapshot
+     * containing its records has been written, after which {@link #deleteSealed()} discards it; rotating
+     * again before that is refused, as it would drop the records of the earlier segment.
+     */
+    public synchronized void rotate() throws IOException {
+        if (hasSealed()) throw new IOException("Journal segment " + sealedPath + " is not yet in a snapshot");
+        channel.force(false);
+        channel.close();
+        Files.move(path, sealedPath);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recordCount = 0;
+    }
+
+    public boolean hasSealed() {
+        return Files.exists(sealedPath);
+    }
+
+    public void deleteSealed() throws IOException {
+        Files.deleteIfExists(sealedPath);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,184 @@
+package com.flyer.keycloak.extension;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Background persistence thread of a repository, applying its {@link DurabilityPolicy}
+ */
+
+@JBossLog
+public class UserPersister implements Closeable {
+
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    private final DurabilityPolicy policy;
+    private final Action flush;
+    private final Action compact;
+    private final LongSupplier pendingWrites;
+    private final ScheduledExecutorService executor;
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private ScheduledFuture<?> scheduledFlush;
+    private long scheduledFlushAt;
+    private boolean compactionScheduled;
+    private long flushesStarted; // sequence numbers of flushes, guarded by this
+    private long flushesCompleted; // highest sequence number of a flush that succeeded
+    private long flushFailedAt; // highest sequence number of a flush that failed
+    private IOException flushFailure;
+
+    /**
+     * @param name          used in the thread name
+     * @param flush         makes all pending changes durable
+     * @param compact       rewrites snapshots that are due
+     * @param pendingWrites number of changes not yet durable
+     */
+    public UserPersister(String name, DurabilityPolicy policy, Action flush, Action compact, LongSupplier pendingWrites) {
+        this.policy = policy;
+        this.flush = flush;
+        this.compact = compact;
+        this.pendingWrites = pendingWrites;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-persister-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.infov("Persisting {0} with durability {1}", name, policy);
+    }
+
+    /**
+     * Called where changes used to be written out, e.g. at the end of a transaction
+     */
+    public void requestFlush() throws IOException {
+        switch (policy.getMode()) {
+            case SYNC_FSYNC:
+                timedFlush();
+                scheduleCompaction();
+                return;
+            case WRITE_BEHIND:
+                scheduleFlush(policy.getMaxFlushIntervalMillis());
+                break;
+            default:
+                break;
+        }
+        if (pendingWrites.getAsLong() > policy.getMaxPendingWrites()) awaitFlush();
+    }
+
+    // backpressure: the caller waits until a flush started after its request has completed
+    private void awaitFlush() throws IOException {
+        long target;
+        synchronized (this) {
+            target = flushesStarted + 1;
+        }
+        scheduleFlush(0);
+        synchronized (this) {
+            try {
+                while (flushesCompleted < target && flushFailedAt < target) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for pending user writes to be flushed", e);
+            }
+            if (flushesCompleted < target) throw new IOException("Flushing pending user writes failed", flushFailure);
+        }
+    }
+
+    private synchronized void scheduleFlush(long delayMillis) {
+        long at = System.currentTimeMillis() + delayMillis;
+        if (scheduledFlush != null && !scheduledFlush.isDone()) {
+            if (scheduledFlushAt <= at) return;
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlushAt = at;
+        scheduledFlush = executor.schedule(() -> {
+            synchronized (this) {
+                scheduledFlushAt = Long.MAX_VALUE; // changes from now on need a new flush
+            }
+            try {
+                timedFlush();
+                compact.run();
+            } catch (IOException e) {
+                log.errorv(e, "Background flush of user changes failed, {0} changes are still pending", pendingWrites.getAsLong());
+                throw e;
+            }
+            return null;
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (compactionScheduled) return;
+        compactionScheduled = true;
+        executor.execute(() -> {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+            try {
+                compact.run();
+            } catch (IOException e) {
+                log.errorv(e, "Background snapshot compaction failed");
+            }
+        });
+    }
+
+    private void timedFlush() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = ++flushesStarted;
+        }
+        long start = System.nanoTime();
+        try {
+            flush.run();
+            synchronized (this) {
+                flushesCompleted = Math.max(flushesCompleted, sequence);
+                notifyAll();
+            }
+        } catch (IOException e) {
+            flushFailed(sequence, e);
+            throw e;
+        } catch (RuntimeException e) {
+            flushFailed(sequence, new IOException(e));
+            throw e;
+        } finally {
+            flushLatency.recordSince(start);
+        }
+    }
+
+    private synchronized void flushFailed(long sequence, IOException failure) {
+        flushFailedAt = Math.max(flushFailedAt, sequence);
+        flushFailure = failure;
+        notifyAll();
+    }
+
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+    /**
+     * @return number of changes queued for the disk
+     */
+    public long getQueueDepth() {
+        return pendingWrites.getAsLong();
+    }
+
+    /**
+     * Stop the background thread and write out everything still pending
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timedFlush();
+        compact.run();
+    }
+}
@@ -1,6 +1,10 @@
 package com.flyer.keycloak.extension;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Low capacity user repository interface
@@ -14,11 +18,36 @@ public interface UserRepository {
     // basic CRUD operations
     void insertUser(User user);
     User getUser(String username);
+    User getUserByEmail(String email);
     void updateUser(User user);
+    // read-modify-write: the function gets a copy of the current record under the user's lock and returns
+    // the record to store, or null to leave it; returns the stored record, or null if nothing was stored
+    User updateUser(String username, UnaryOperator<User> update);
+    // the same, where the function also gives the user the new username; returns null and changes nothing
+    // if the user is gone or the new username is taken
+    User renameUser(String username, String newUsername, UnaryOperator<User> update);
     void removeUser(String username);
 
     // complex queries
     int getUserCount();
     List<User> getAllUsers();
     List<User> findUserByKeyword(String keyword);
+    List<User> findUsersByAttribute(String name, String value);
+
+    // visits every user without copying them into a list, in no particular order
+    void forEachUser(Consumer<User> action);
+
+    // paged queries, ordered by username
+    List<User> getUsers(int firstResult, int maxResults);
+    List<User> findUserByKeyword(String keyword, int firstResult, int maxResults);
+
+    // group membership by group id; members are listed in a stable order that is not alphabetical
+    List<User> getGroupMembers(Collection<String> groupIds, boolean all, int firstResult, int maxResults);
+    boolean isGroupMember(String username, String groupId);
+    void removeGroup(String groupId);
+
+    // durability and change notification
+    void persistUserDataToFile() throws IOException;
+    void bulkLoad(Collection<User> users) throws IOException;
+    void addChangeListener(UserChangeListener listener);
 }
@@ -0,0 +1,70 @@
+package com.flyer.keycloak.extension;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Storage engine holding the user records of one {@link FileUserRepository}
+ */
+
+public interface UserStore {
+
+    enum Type {
+        /** User objects in a concurrent hash map */
+        MAP,
+        /** packed UTF-8 records in on-heap slabs, see {@link CompactUserStore} */
+        COMPACT,
+        /** packed UTF-8 records in direct buffers outside the Java heap */
+        COMPACT_OFF_HEAP;
+
+        /**
+         * Parse "map", "compact" or "compact-off-heap", in any case and with - or _
+         */
+        public static Type parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+
+        public UserStore create() {
+            switch (this) {
+                case COMPACT:
+                    return new CompactUserStore(false);
+                case COMPACT_OFF_HEAP:
+                    return new CompactUserStore(true);
+                default:
+                    return new MapUserStore();
+            }
+        }
+    }
+
+    User get(String username);
+
+    /**
+     * Insert the user or replace the record with the same username
+     */
+    void put(User user);
+
+    /**
+     * Replace the record with the same username, if there is one
+     *
+     * @return whether a record was replaced
+     */
+    boolean replace(User user);
+
+    /**
+     * @return whether a record was removed
+     */
+    boolean remove(String username);
+
+    int size();
+
+    /**
+     * Visit every user, seeing changes made meanwhile or not
+     */
+    void forEach(Consumer<User> action);
+
+    /**
+     * @return copy of all records at this point in time, which can be iterated while the store changes
+     */
+    Collection<User> snapshot();
+}
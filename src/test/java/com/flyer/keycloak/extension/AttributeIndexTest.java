@@ -0,0 +1,135 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class AttributeIndexTest {
+
+    @Parameterized.Parameters(name = "indexed={0}")
+    public static Object[] indexed() {
+        return new Object[]{true, false};
+    }
+
+    @Parameterized.Parameter
+    public boolean indexed;
+
+    private Path directory;
+    private FileUserRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("attribute-index");
+        repository = new FileUserRepository(directory.resolve("users.json").toString(), true, 100,
+                SnapshotFormat.JSON_LINES, UserStore.Type.MAP, false);
+        repository.insertUser(user("jane", "department", "engineering"));
+        repository.insertUser(user("john", "department", "sales"));
+        if (indexed) repository.indexAttributes(Arrays.asList("department", "role"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void matchesWholeValuesOnly() {
+        assertEquals(Collections.singletonList("jane"), find("department", "engineering"));
+        assertEquals(Collections.emptyList(), find("department", "engineer"));
+        assertEquals(Collections.emptyList(), find("department", "Engineering"));
+        assertEquals(Collections.emptyList(), find("role", "engineering"));
+    }
+
+    @Test
+    public void valueChangeMovesTheMatch() {
+        repository.updateUser("jane", current -> {
+            current.setAttribute("department", Collections.singletonList("sales"));
+            return current;
+        });
+        assertEquals(Collections.emptyList(), find("department", "engineering"));
+        assertEquals(Arrays.asList("jane", "john"), find("department", "sales"));
+
+        repository.updateUser("john", current -> {
+            current.setAttribute("department", null);
+            return current;
+        });
+        assertEquals(Collections.singletonList("jane"), find("department", "sales"));
+    }
+
+    @Test
+    public void removedUserIsNoLongerFound() {
+        repository.removeUser("jane");
+        assertEquals(Collections.emptyList(), find("department", "engineering"));
+        assertEquals(Collections.singletonList("john"), find("department", "sales"));
+    }
+
+    @Test
+    public void anyOfSeveralValuesMatches() {
+        repository.insertUser(user("joan", "role", "admin", "auditor"));
+        repository.insertUser(user("jill", "role", "auditor"));
+        assertEquals(Collections.singletonList("joan"), find("role", "admin"));
+        assertEquals(Arrays.asList("jill", "joan"), find("role", "auditor"));
+
+        repository.updateUser("joan", current -> {
+            current.setAttribute("role", Collections.singletonList("admin"));
+            return current;
+        });
+        assertEquals(Collections.singletonList("joan"), find("role", "admin"));
+        assertEquals(Collections.singletonList("jill"), find("role", "auditor"));
+    }
+
+    @Test
+    public void fileAttributeIsFoundByScan() {
+        repository.updateUser("john", current -> {
+            current.setFavouriteLine("Circle");
+            return current;
+        });
+        assertFalse(repository.getUser("john").getAttributes().containsKey(FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE));
+        assertEquals(Collections.singletonList("john"), find(FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE, "Circle"));
+        assertEquals(Collections.emptyList(), find(FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE, "Central"));
+    }
+
+    @Test
+    public void indexCoversOnlyTheConfiguredNames() {
+        AttributeIndex index = new AttributeIndex(Arrays.asList("department", "role"));
+        assertTrue(index.isIndexed("role"));
+        assertFalse(index.isIndexed(FileUserStorageProvider.FAVOURITE_LINE_ATTRIBUTE));
+
+        index.add(user("jane", "department", "engineering"));
+        index.add(user("jane", "department", "sales"));
+        assertEquals(Collections.emptyList(), index.search("department", "engineering"));
+        assertEquals(Collections.singletonList("jane"), index.search("department", "sales"));
+        index.remove("jane");
+        assertEquals(Collections.emptyList(), index.search("department", "sales"));
+    }
+
+    private List<String> find(String name, String value) {
+        return repository.findUsersByAttribute(name, value).stream()
+                .map(User::getUsername)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static User user(String username, String name, String... values) {
+        User user = new User();
+        user.setUsername(username);
+        user.setAttribute(name, Arrays.asList(values));
+        return user;
+    }
+}
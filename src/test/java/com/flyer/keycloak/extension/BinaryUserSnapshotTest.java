@@ -0,0 +1,212 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryUserSnapshotTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("binary-snapshot");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void roundTripKeepsNullFieldsAttributesAndGroups() throws IOException {
+        User full = user("jürgen", "Jürgen", "Straße");
+        full.setEmail("jurgen@example.com");
+        full.setPasswordHash("hash");
+        full.setFavouriteLine("🐉");
+        full.setAttribute("nickname", Arrays.asList("Jü", ""));
+        full.joinGroup("group-a");
+        User bare = new User();
+        bare.setUsername("bare");
+        Path file = directory.resolve("users.bin");
+
+        BinaryUserSnapshot.write(file, Arrays.asList(full, bare));
+        List<User> read = read(file);
+        assertEquals(Arrays.asList(full, bare), read);
+        assertNull(read.get(1).getFirstName());
+        assertNull(read.get(1).getPassword());
+    }
+
+    @Test
+    public void recognizesBinaryFilesByTheirMagic() throws IOException {
+        Path binary = directory.resolve("users.bin"), json = directory.resolve("users.json");
+        BinaryUserSnapshot.write(binary, Arrays.asList(user("jane", "Jane", "Doe")));
+        SnapshotFormat.JSON.write(json, Arrays.asList(user("jane", "Jane", "Doe")), new ObjectMapper());
+        assertTrue(BinaryUserSnapshot.isBinary(binary));
+        assertFalse(BinaryUserSnapshot.isBinary(json));
+
+        Path binaryNamedJson = directory.resolve("renamed.json");
+        Files.copy(binary, binaryNamedJson);
+        assertTrue(BinaryUserSnapshot.isBinary(binaryNamedJson));
+        Files.write(directory.resolve("empty.bin"), new byte[0]);
+        assertFalse(BinaryUserSnapshot.isBinary(directory.resolve("empty.bin")));
+        // a file yet to be written goes by its extension
+        assertTrue(BinaryUserSnapshot.isBinary(directory.resolve("missing.bin")));
+        assertFalse(BinaryUserSnapshot.isBinary(directory.resolve("missing.json")));
+    }
+
+    @Test
+    public void rejectsFlippedByte() throws IOException {
+        Path file = directory.resolve("users.bin");
+        BinaryUserSnapshot.write(file, Arrays.asList(user("jane", "Jane", "Doe")));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x10;
+        Files.write(file, bytes);
+        assertRejected(file, "Checksum mismatch");
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        Path file = directory.resolve("users.bin");
+        BinaryUserSnapshot.write(file, Arrays.asList(user("jane", "Jane", "Doe"), user("john", "John", "Doe")));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 20));
+        assertRejected(file, "Checksum mismatch");
+        Files.write(file, Arrays.copyOf(bytes, 10));
+        assertRejected(file, "Truncated");
+    }
+
+    @Test
+    public void readsEarlierVersions() throws IOException {
+        Path v1 = directory.resolve("v1.bin"), v2 = directory.resolve("v2.bin");
+        Files.write(v1, legacySnapshot(1));
+        Files.write(v2, legacySnapshot(2));
+
+        User jane = read(v1).get(0);
+        assertEquals("jane", jane.getUsername());
+        assertEquals("Jane", jane.getFirstName());
+        assertNull(jane.getLastName());
+        assertEquals("line", jane.getFavouriteLine());
+        assertTrue(jane.getAttributes().isEmpty());
+
+        jane = read(v2).get(0);
+        assertEquals("line", jane.getFavouriteLine());
+        assertEquals(Arrays.asList("a", "b"), jane.getAttribute("nickname"));
+        assertTrue(jane.getGroups().isEmpty());
+    }
+
+    @Test
+    public void convertsBothWaysIncludingJournaledChanges() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Path json = directory.resolve("users.json");
+        SnapshotFormat.JSON.write(json, Arrays.asList(user("jane", "Jane", "Doe"), user("john", "John", "Doe")), objectMapper);
+        FileUserRepository repository = new FileUserRepository(json.toString(), true, 1000, SnapshotFormat.JSON,
+                UserStore.Type.MAP, false);
+        try {
+            repository.updateUser("jane", current -> {
+                current.setLastName("Roe");
+                return current;
+            });
+            repository.removeUser("john");
+            User joan = user("joan", "Joan", "Doe");
+            joan.joinGroup("group-a");
+            repository.insertUser(joan);
+
+            Path binary = directory.resolve("users.bin");
+            BinaryUserSnapshot.convert(json, binary);
+            List<User> converted = read(binary);
+            converted.sort((a, b) -> a.getUsername().compareTo(b.getUsername()));
+            assertEquals(Arrays.asList("jane", "joan"), usernames(converted));
+            assertEquals("Roe", converted.get(0).getLastName());
+            assertEquals(joan, converted.get(1));
+
+            Path back = directory.resolve("back.json");
+            BinaryUserSnapshot.convert(binary, back);
+            Map<String, User> reread = new UserFileLoader(objectMapper).loadWithJournal(back);
+            assertEquals(2, reread.size());
+            assertEquals("Roe", reread.get("jane").getLastName());
+            assertEquals(joan, reread.get("joan"));
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static void assertRejected(Path file, String message) {
+        try {
+            read(file);
+            fail("Read a damaged snapshot");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    // the layout of versions 1 (no attributes) and 2 (no groups) for one user
+    private static byte[] legacySnapshot(int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{'F', 'U', 'S', 'B'});
+        out.writeInt(version);
+        out.writeInt(1);
+        for (String field : new String[]{"jane", "Jane", null, "jane@example.com", "hash", "line"}) writeField(out, field);
+        if (version >= 2) {
+            out.writeInt(1);
+            writeField(out, "nickname");
+            out.writeInt(2);
+            writeField(out, "a");
+            writeField(out, "b");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        return ByteBuffer.allocate(bytes.size() + 8).put(bytes.toByteArray()).putLong(crc.getValue()).array();
+    }
+
+    private static void writeField(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static List<User> read(Path file) throws IOException {
+        List<User> users = new ArrayList<>();
+        assertEquals(BinaryUserSnapshot.read(file, users::add), users.size());
+        return users;
+    }
+
+    private static List<String> usernames(List<User> users) {
+        List<String> usernames = new ArrayList<>();
+        for (User user : users) usernames.add(user.getUsername());
+        return usernames;
+    }
+
+    private static User user(String username, String firstName, String lastName) {
+        User user = new User();
+        user.setUsername(username);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        return user;
+    }
+}
@@ -0,0 +1,209 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class CompactUserStoreTest {
+
+    @Parameterized.Parameters(name = "offHeap={0}")
+    public static Collection<Boolean> offHeap() {
+        return Arrays.asList(false, true);
+    }
+
+    @Parameterized.Parameter
+    public boolean offHeap;
+
+    @Test
+    public void recordsRoundTripWithNullFieldsAndMultiByteText() {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        User full = user("jürgen.straße", "Jürgen", "Straße");
+        full.setEmail("jürgen@例え.jp");
+        full.setPasswordHash("hash");
+        full.setFavouriteLine("🐉 Dracarys");
+        full.setAttribute("nickname", Arrays.asList("Jü", "", "🐉"));
+        full.setAttribute("house", Arrays.asList("Stark"));
+        full.joinGroup("group-b");
+        full.joinGroup("group-a");
+        store.put(full);
+        User bare = new User();
+        bare.setUsername("bare");
+        store.put(bare);
+
+        assertEquals(full, store.get("jürgen.straße"));
+        User read = store.get("bare");
+        assertEquals("bare", read.getUsername());
+        assertNull(read.getFirstName());
+        assertNull(read.getEmail());
+        assertNull(read.getPassword());
+        assertNull(read.getFavouriteLine());
+        assertTrue(read.getAttributes().isEmpty());
+        assertTrue(read.getGroups().isEmpty());
+        assertNull(store.get("jürgen.strasse"));
+        assertEquals(2, store.size());
+
+        User replaced = user("bare", "Bare", null);
+        assertTrue(store.replace(replaced));
+        assertEquals(replaced, store.get("bare"));
+        assertFalse(store.replace(user("missing", "Missing", null)));
+        assertNull(store.get("missing"));
+
+        assertTrue(store.remove("bare"));
+        assertFalse(store.remove("bare"));
+        assertNull(store.get("bare"));
+        assertEquals(1, store.size());
+        assertEquals(Arrays.asList(full), store.snapshot().stream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void removedUserCanBeInsertedAgain() {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        for (int i = 0; i < 100; i++) store.put(user("user" + i, "First", "Last"));
+        for (int i = 0; i < 100; i += 2) assertTrue(store.remove("user" + i));
+        for (int i = 0; i < 100; i += 4) store.put(user("user" + i, "Again", "Last"));
+        assertEquals(75, store.size());
+        for (int i = 0; i < 100; i++) {
+            User user = store.get("user" + i);
+            if (i % 4 == 0) assertEquals("Again", user.getFirstName());
+            else if (i % 2 == 0) assertNull(user);
+            else assertEquals("First", user.getFirstName());
+        }
+        assertFalse(store.replace(user("user2", "Gone", "Last")));
+    }
+
+    @Test
+    public void tableGrowsPastTheLoadFactorAndShedsTombstones() {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        long empty = store.getFootprintBytes();
+        for (int i = 0; i < 5000; i++) store.put(user("user" + i, "First" + i, "Last"));
+        assertTrue(store.getFootprintBytes() > empty);
+        assertEquals(5000, store.size());
+        for (int i = 0; i < 5000; i++) assertEquals("First" + i, store.get("user" + i).getFirstName());
+
+        // churn through many more usernames than ever live at once, leaving tombstones behind
+        for (int i = 5000; i < 50000; i++) {
+            store.put(user("user" + i, "First" + i, "Last"));
+            assertTrue(store.remove("user" + (i - 5000)));
+        }
+        assertEquals(5000, store.size());
+        for (int i = 45000; i < 50000; i++) assertEquals("First" + i, store.get("user" + i).getFirstName());
+        assertNull(store.get("user0"));
+        assertEquals(5000, store.snapshot().size());
+    }
+
+    @Test
+    public void slabsAreCompactedAfterManyReplacements() {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        for (int i = 0; i < 100; i++) store.put(user("user" + i, "First", "Last"));
+        long footprint = store.getFootprintBytes();
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 100; i++) {
+                User user = user("user" + i, "First" + round, "Last");
+                user.setFavouriteLine(new String(padding));
+                assertTrue(store.replace(user));
+            }
+        }
+        // 10 MB of replaced records would take 40 slabs; compaction keeps only the live 100 KB
+        assertTrue(store.getFootprintBytes() <= footprint + 2L * CompactUserStore.SLAB_SIZE);
+        for (int i = 0; i < 100; i++) {
+            User user = store.get("user" + i);
+            assertEquals("First99", user.getFirstName());
+            assertEquals(new String(padding), user.getFavouriteLine());
+        }
+    }
+
+    @Test
+    public void snapshotOutlivesLaterChanges() {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        for (int i = 0; i < 10; i++) store.put(user("user" + i, "Before", "Last"));
+        Collection<User> snapshot = store.snapshot();
+        for (int round = 0; round < 300; round++) {
+            for (int i = 0; i < 10; i++) store.replace(user("user" + i, "After" + round, String.valueOf(new char[1000])));
+        }
+        for (User user : snapshot) assertEquals("Before", user.getFirstName());
+    }
+
+    @Test
+    public void readersSeeWholeRecordsWhileWritersReplaceAndRehash() throws Exception {
+        CompactUserStore store = new CompactUserStore(offHeap);
+        int users = 200;
+        for (int i = 0; i < users; i++) store.put(versioned("user" + i, 0));
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<?> writer = executor.submit(() -> {
+            Random random = new Random(1);
+            for (int version = 1; version <= 20000; version++) {
+                store.replace(versioned("user" + random.nextInt(users), version));
+                // transient users force tombstones, rehashes and slab compaction under the readers
+                store.put(versioned("transient" + version, version));
+                store.remove("transient" + (version - 1));
+            }
+            running.set(false);
+            return null;
+        });
+        List<Future<Integer>> readers = Arrays.asList(reader(executor, store, users, running),
+                reader(executor, store, users, running), reader(executor, store, users, running));
+        writer.get(60, TimeUnit.SECONDS);
+        for (Future<Integer> reader : readers) assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+        executor.shutdown();
+        assertEquals(users + 1, store.size());
+    }
+
+    private static Future<Integer> reader(ExecutorService executor, CompactUserStore store, int users, AtomicBoolean running) {
+        return executor.submit(() -> {
+            Random random = new Random();
+            int reads = 0;
+            Map<String, Integer> lastSeen = new HashMap<>();
+            while (running.get()) {
+                String username = "user" + random.nextInt(users);
+                User user = store.get(username);
+                assertNotNull(username, user);
+                assertEquals(username, user.getUsername());
+                // every field carries the version, so a torn record shows as a mismatch
+                int version = Integer.parseInt(user.getFirstName());
+                assertEquals(user.getFirstName(), user.getLastName());
+                assertEquals(Arrays.asList(user.getFirstName()), user.getAttribute("version"));
+                assertTrue(version >= lastSeen.getOrDefault(username, 0));
+                lastSeen.put(username, version);
+                reads++;
+            }
+            return reads;
+        });
+    }
+
+    private static User versioned(String username, int version) {
+        User user = user(username, String.valueOf(version), String.valueOf(version));
+        user.setAttribute("version", Arrays.asList(String.valueOf(version)));
+        return user;
+    }
+
+    private static User user(String username, String firstName, String lastName) {
+        User user = new User();
+        user.setUsername(username);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        return user;
+    }
+}
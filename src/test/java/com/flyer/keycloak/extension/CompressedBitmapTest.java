@@ -0,0 +1,115 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedBitmapTest {
+
+    @Test
+    public void chunkTurnsIntoBitmapPastThresholdAndBackOnRemoval() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = CompressedBitmap.ARRAY_MAX - 1; i >= 0; i--) {
+            assertTrue(bitmap.add(i * 3));
+            expected.add(i * 3);
+        }
+        assertFalse(bitmap.add(0));
+        assertEquals(0, bitmap.bitmapChunkCount());
+        assertEquals(expected, values(bitmap));
+
+        assertTrue(bitmap.add(1));
+        expected.add(1);
+        assertEquals(1, bitmap.bitmapChunkCount());
+        assertEquals(CompressedBitmap.ARRAY_MAX + 1, bitmap.getCardinality());
+        assertEquals(expected, values(bitmap));
+
+        assertTrue(bitmap.remove(3));
+        expected.remove(3);
+        assertEquals(0, bitmap.bitmapChunkCount());
+        assertFalse(bitmap.contains(3));
+        assertTrue(bitmap.contains(1));
+        assertEquals(expected, values(bitmap));
+    }
+
+    @Test
+    public void emptiedChunksAreDropped() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        bitmap.add(5);
+        bitmap.add(1 << 16);
+        bitmap.add(3 << 16 | 7);
+        assertTrue(bitmap.remove(1 << 16));
+        assertFalse(bitmap.remove(1 << 16));
+        assertFalse(bitmap.remove(2 << 16));
+        assertEquals(2, bitmap.getCardinality());
+        assertEquals(listOf(5, 3 << 16 | 7), page(bitmap, 0, 10));
+        assertEquals(listOf(3 << 16 | 7), page(bitmap, 1, 10));
+        assertTrue(bitmap.remove(5));
+        assertTrue(bitmap.remove(3 << 16 | 7));
+        assertTrue(bitmap.isEmpty());
+        assertEquals(listOf(), page(bitmap, 0, 10));
+    }
+
+    @Test
+    public void matchesSortedSetUnderRandomChanges() {
+        Random random = new Random(21);
+        CompressedBitmap a = new CompressedBitmap(), b = new CompressedBitmap();
+        TreeSet<Integer> expectedA = new TreeSet<>(), expectedB = new TreeSet<>();
+        for (int step = 0; step < 60000; step++) {
+            // dense in the first chunk, sparse in the others, so both layouts and both conversions occur
+            int value = random.nextBoolean() ? random.nextInt(6000) : random.nextInt(4 << 16);
+            boolean first = random.nextBoolean();
+            CompressedBitmap bitmap = first ? a : b;
+            TreeSet<Integer> expected = first ? expectedA : expectedB;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), bitmap.remove(value));
+            } else {
+                assertEquals(expected.add(value), bitmap.add(value));
+            }
+        }
+        assertTrue(a.bitmapChunkCount() > 0);
+        assertEquals(expectedA.size(), a.getCardinality());
+        assertEquals(expectedA, values(a));
+        assertEquals(expectedB, values(b));
+        for (int value = 0; value < 6000; value++) assertEquals(expectedA.contains(value), a.contains(value));
+
+        List<Integer> all = new ArrayList<>(expectedA);
+        for (int from = 0; from < all.size(); from += 1231) {
+            assertEquals(all.subList(from, Math.min(all.size(), from + 40)), page(a, from, 40));
+        }
+
+        TreeSet<Integer> union = new TreeSet<>(expectedA);
+        union.addAll(expectedB);
+        TreeSet<Integer> intersection = new TreeSet<>(expectedA);
+        intersection.retainAll(expectedB);
+        assertEquals(union, values(CompressedBitmap.or(a, b)));
+        assertEquals(intersection, values(CompressedBitmap.and(a, b)));
+        assertEquals(expectedA, values(new CompressedBitmap(a)));
+    }
+
+    private static TreeSet<Integer> values(CompressedBitmap bitmap) {
+        List<Integer> values = page(bitmap, 0, Integer.MAX_VALUE);
+        for (int i = 1; i < values.size(); i++) assertTrue(values.get(i - 1) < values.get(i));
+        assertEquals(bitmap.getCardinality(), values.size());
+        return new TreeSet<>(values);
+    }
+
+    private static List<Integer> page(CompressedBitmap bitmap, int offset, int limit) {
+        List<Integer> values = new ArrayList<>();
+        assertEquals(bitmap.forEach(offset, limit, values::add), values.size());
+        return values;
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer value : values) list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,94 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EmailIndexTest {
+
+    private Path directory;
+    private FileUserRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("email-index");
+        repository = new FileUserRepository(directory.resolve("users.json").toString(), true, 100,
+                SnapshotFormat.JSON_LINES, UserStore.Type.MAP, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void lookupIgnoresCaseAndSurroundingSpace() {
+        repository.insertUser(user("jane", "Jane.Doe@Example.com"));
+        assertEquals("jane", username(" jane.doe@EXAMPLE.COM "));
+        assertNull(repository.getUserByEmail("jane@example.com"));
+        assertNull(repository.getUserByEmail(null));
+    }
+
+    @Test
+    public void emailChangeMovesTheLookup() {
+        repository.insertUser(user("jane", "jane@example.com"));
+        repository.updateUser("jane", current -> {
+            current.setEmail("jane.doe@example.com");
+            return current;
+        });
+        assertNull(repository.getUserByEmail("jane@example.com"));
+        assertEquals("jane", username("jane.doe@example.com"));
+
+        repository.updateUser("jane", current -> {
+            current.setEmail(null);
+            return current;
+        });
+        assertNull(repository.getUserByEmail("jane.doe@example.com"));
+    }
+
+    @Test
+    public void removedUserIsNoLongerFound() {
+        repository.insertUser(user("jane", "jane@example.com"));
+        repository.removeUser("jane");
+        assertNull(repository.getUserByEmail("jane@example.com"));
+    }
+
+    @Test
+    public void sharedEmailStaysFoundWhileAnyOwnerHasIt() {
+        repository.insertUser(user("jane", "family@example.com"));
+        repository.insertUser(user("john", "Family@example.com"));
+        repository.insertUser(user("joan", "family@example.com"));
+        assertEquals("jane", username("family@example.com"));
+
+        repository.removeUser("jane");
+        assertEquals("joan", username("family@example.com"));
+        repository.updateUser("joan", current -> {
+            current.setEmail("joan@example.com");
+            return current;
+        });
+        assertEquals("john", username("family@example.com"));
+        assertEquals("joan", username("joan@example.com"));
+        repository.removeUser("john");
+        assertNull(repository.getUserByEmail("family@example.com"));
+    }
+
+    private String username(String email) {
+        User user = repository.getUserByEmail(email);
+        return user == null ? null : user.getUsername();
+    }
+
+    private static User user(String username, String email) {
+        User user = new User();
+        user.setUsername(username);
+        user.setEmail(email);
+        return user;
+    }
+}
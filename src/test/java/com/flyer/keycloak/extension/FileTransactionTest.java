@@ -0,0 +1,127 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class FileTransactionTest {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS = 500;
+
+    private Path directory;
+    private FileUserRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("file-transaction");
+        repository = new FileUserRepository(directory.resolve("users.json").toString(), true, 100,
+                SnapshotFormat.JSON_LINES, UserStore.Type.MAP, false);
+        User user = new User("Jane", "Doe", "jane@example.com", "hello");
+        repository.insertUser(user);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void concurrentCommitsKeepEachOthersChanges() throws Exception {
+        ProviderMetrics metrics = new ProviderMetrics();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        Future<?> persister = executor.submit(() -> {
+            while (running.get()) repository.persistUserDataToFile();
+            return null;
+        });
+        List<Future<?>> writers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            String attribute = "attribute-" + i;
+            writers.add(executor.submit(() -> {
+                for (int commit = 1; commit <= COMMITS; commit++) {
+                    FileTransaction transaction = new FileTransaction(repository, metrics);
+                    transaction.begin();
+                    transaction.edit(repository.getUser("jane@example.com"))
+                            .setAttribute(attribute, Collections.singletonList(String.valueOf(commit)));
+                    transaction.commit();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) writer.get(60, TimeUnit.SECONDS);
+        running.set(false);
+        persister.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        User user = repository.getUser("jane@example.com");
+        for (int i = 0; i < THREADS; i++) {
+            assertEquals("attribute-" + i, Collections.singletonList(String.valueOf(COMMITS)), user.getAttribute("attribute-" + i));
+        }
+    }
+
+    @Test
+    public void commitAppliesOnlyDirtyFields() {
+        ProviderMetrics metrics = new ProviderMetrics();
+        FileTransaction first = new FileTransaction(repository, metrics);
+        first.begin();
+        first.edit(repository.getUser("jane@example.com")).set(FileTransaction.Field.FIRST_NAME, "Janet");
+        FileTransaction second = new FileTransaction(repository, metrics);
+        second.begin();
+        second.edit(repository.getUser("jane@example.com")).set(FileTransaction.Field.LAST_NAME, "Smith");
+        first.commit();
+        second.commit();
+
+        User user = repository.getUser("jane@example.com");
+        assertEquals("Janet", user.getFirstName());
+        assertEquals("Smith", user.getLastName());
+    }
+
+    @Test
+    public void renameKeepsConcurrentChangesAndIsNeverHalfDone() throws Exception {
+        ProviderMetrics metrics = new ProviderMetrics();
+        FileTransaction rename = new FileTransaction(repository, metrics);
+        rename.begin();
+        rename.edit(repository.getUser("jane@example.com")).set(FileTransaction.Field.USERNAME, "janet@example.com");
+        FileTransaction edit = new FileTransaction(repository, metrics);
+        edit.begin();
+        edit.edit(repository.getUser("jane@example.com")).set(FileTransaction.Field.FIRST_NAME, "Janet");
+        edit.commit();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean neither = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                // the new record is inserted before the old one is removed: once the old name is gone, the
+                // new one must be there
+                boolean gone = repository.getUser("jane@example.com") == null;
+                if (gone && repository.getUser("janet@example.com") == null) neither.set(true);
+            }
+        });
+        reader.start();
+        rename.commit();
+        running.set(false);
+        reader.join();
+
+        assertNull(repository.getUser("jane@example.com"));
+        assertEquals("Janet", repository.getUser("janet@example.com").getFirstName());
+        assertFalse("user seen under neither name", neither.get());
+    }
+}
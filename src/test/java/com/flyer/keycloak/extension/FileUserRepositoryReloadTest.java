@@ -0,0 +1,157 @@
+package com.flyer.keycloak.extension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileUserRepositoryReloadTest {
+
+    private Path directory;
+    private Path file;
+    private FileUserRepository repository;
+    private UserChangeFeed feed;
+    private UserAdapterCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("reload");
+        file = directory.resolve("users.json");
+        write(user("jane", "jane@example.com"), user("john", "john@example.com"), user("joan", "joan@example.com"));
+        repository = new FileUserRepository(file.toString(), true, 100, SnapshotFormat.JSON_LINES,
+                UserStore.Type.MAP, false);
+        feed = new UserChangeFeed(100);
+        cache = new UserAdapterCache(100, 300);
+        repository.addChangeListener(feed);
+        repository.addChangeListener(cache);
+        for (String username : Arrays.asList("jane", "john", "joan")) {
+            cache.getAttributes("realm", username, MultivaluedHashMap::new);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void externalEditAppliesOnlyTheChangedRecords() throws IOException {
+        write(user("jane", "jane.doe@example.com"), user("joan", "joan@example.com"), user("jill", "jill@example.com"));
+        repository.reloadFile();
+
+        assertEquals("jane.doe@example.com", repository.getUser("jane").getEmail());
+        assertEquals("jane", repository.getUserByEmail("jane.doe@example.com").getUsername());
+        assertNull(repository.getUserByEmail("jane@example.com"));
+        assertEquals("jill@example.com", repository.getUser("jill").getEmail());
+        assertEquals("joan@example.com", repository.getUser("joan").getEmail());
+        assertEquals(new HashSet<>(Arrays.asList("jane", "john", "jill")), new HashSet<>(feed.changesSince(0, 100)));
+        assertEquals(3, feed.getSequence());
+    }
+
+    @Test
+    public void deletedUserIsRemoved() throws IOException {
+        write(user("jane", "jane@example.com"), user("joan", "joan@example.com"));
+        repository.reloadFile();
+
+        assertNull(repository.getUser("john"));
+        assertNull(repository.getUserByEmail("john@example.com"));
+        assertEquals(2, repository.getUserCount());
+        assertEquals(Collections.singletonList("john"), feed.changesSince(0, 100));
+    }
+
+    @Test
+    public void adapterCacheDropsOnlyTheChangedUsers() throws IOException {
+        write(user("jane", "jane.doe@example.com"), user("john", "john@example.com"), user("joan", "joan@example.com"));
+        repository.reloadFile();
+
+        long misses = cache.getMissCount();
+        cache.getAttributes("realm", "john", () -> {
+            fail("unchanged user john was evicted");
+            return null;
+        });
+        cache.getAttributes("realm", "joan", () -> {
+            fail("unchanged user joan was evicted");
+            return null;
+        });
+        cache.getAttributes("realm", "jane", MultivaluedHashMap::new);
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void unparseableFileIsIgnored() throws IOException {
+        Files.write(file, "{\"username\":\"jane\",".getBytes(StandardCharsets.UTF_8));
+        touch();
+        repository.reloadFile();
+
+        assertEquals(3, repository.getUserCount());
+        assertEquals(0, feed.getSequence());
+
+        // once the file parses again its changes are picked up
+        write(user("jane", "jane@example.com"), user("john", "john@example.com"));
+        repository.reloadFile();
+        assertNull(repository.getUser("joan"));
+        assertEquals(Collections.singletonList("joan"), feed.changesSince(0, 100));
+    }
+
+    @Test
+    public void emptyFileIsIgnored() throws IOException {
+        Files.write(file, new byte[0]);
+        touch();
+        repository.reloadFile();
+
+        assertEquals(3, repository.getUserCount());
+        assertEquals(0, feed.getSequence());
+    }
+
+    @Test
+    public void unchangedFileIsNotReloaded() throws IOException {
+        repository.reloadFile();
+        assertEquals(0, feed.getSequence());
+    }
+
+    @Test
+    public void watcherReportsChangesOfTheFile() throws Exception {
+        CountDownLatch changed = new CountDownLatch(1);
+        try (UserFileWatcher watcher = new UserFileWatcher(Collections.singletonMap(file, changed::countDown))) {
+            Files.write(directory.resolve("other.json"), new byte[0]);
+            write(user("jane", "jane@example.com"));
+            assertTrue("no change reported", changed.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    // rewrite the file as another process would, with a modification time the repository has not seen
+    private void write(User... users) throws IOException {
+        SnapshotFormat.JSON_LINES.write(file, Arrays.asList(users), new ObjectMapper());
+        touch();
+    }
+
+    private void touch() throws IOException {
+        if (repository == null) return;
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+    }
+
+    private static User user(String username, String email) {
+        User user = new User();
+        user.setUsername(username);
+        user.setEmail(email);
+        return user;
+    }
+}
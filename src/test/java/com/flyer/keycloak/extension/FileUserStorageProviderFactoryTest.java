@@ -0,0 +1,133 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.Config;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.Provider;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FileUserStorageProviderFactoryTest {
+
+    private static final String USERNAME = "jon.snow@winterfell.com";
+
+    private final RealmModel realm = proxy(RealmModel.class, (proxy, method, args) ->
+            method.getName().equals("getId") ? "realm" : null);
+    private Path directory;
+    private FileUserStorageProviderFactory factory;
+    private ComponentModel model;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("provider-factory");
+        factory = new FileUserStorageProviderFactory();
+        factory.init(new Config.SystemPropertiesScope("file-user-storage-provider-test."));
+        model = new ComponentModel();
+        model.setId("component");
+        model.setName("component");
+        model.put(FileUserStorageProviderFactory.FILE_PATH, directory.resolve("users.json").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        factory.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void updateReopensOnlyOnceTheSessionsOfTheOldStorageHaveEnded() throws Exception {
+        Session before = new Session();
+        UserModel user = factory.create(before.session, model).getUserByUsername(USERNAME, realm);
+
+        factory.onUpdate(before.session, realm, model, model);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Session after = new Session();
+        Future<FileUserStorageProvider> reopened = executor.submit(() -> factory.create(after.session, model));
+        try {
+            reopened.get(500, TimeUnit.MILLISECONDS);
+            fail("The files were reopened while a session of the old storage was open");
+        } catch (TimeoutException expected) {
+            // waits for the session below
+        }
+
+        user.setFirstName("Aegon");
+        before.commit();
+        before.close();
+        UserModel reloaded = reopened.get(30, TimeUnit.SECONDS).getUserByUsername(USERNAME, realm);
+        assertEquals("Aegon", reloaded.getFirstName());
+        after.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void removedComponentClosesOnceItsSessionEnds() throws Exception {
+        Session session = new Session();
+        UserModel user = factory.create(session.session, model).getUserByUsername(USERNAME, realm);
+        factory.preRemove(session.session, realm, model);
+        user.setLastName("Targaryen");
+        session.commit();
+        session.close();
+
+        Session next = new Session();
+        assertEquals("Targaryen", factory.create(next.session, model).getUserByUsername(USERNAME, realm).getLastName());
+        next.close();
+    }
+
+    // the parts of a Keycloak session the provider uses: its transactions and the providers closed with it
+    private static class Session {
+        private final List<KeycloakTransaction> transactions = new ArrayList<>();
+        private final List<Provider> closed = new ArrayList<>();
+        private final KeycloakSession session = proxy(KeycloakSession.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getTransactionManager":
+                    return proxy(KeycloakTransactionManager.class, (manager, enlist, transaction) -> {
+                        if (enlist.getName().startsWith("enlist")) transactions.add((KeycloakTransaction) transaction[0]);
+                        return null;
+                    });
+                case "enlistForClose":
+                    closed.add((Provider) args[0]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+
+        void commit() {
+            for (KeycloakTransaction transaction : transactions) {
+                transaction.begin();
+                transaction.commit();
+            }
+            transactions.clear();
+        }
+
+        void close() {
+            closed.forEach(Provider::close);
+            closed.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,83 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroupIndexTest {
+
+    private final GroupIndex index = new GroupIndex();
+
+    @Test
+    public void countsAndPagesMembersOfAnyOrAllGroups() {
+        index.add(user("a", "admins", "staff"));
+        index.add(user("b", "staff"));
+        index.add(user("c"));
+        index.add(user("d", "staff", "admins"));
+
+        assertEquals(3, index.count(Arrays.asList("admins", "staff"), false));
+        assertEquals(2, index.count(Arrays.asList("admins", "staff"), true));
+        assertEquals(0, index.count(Arrays.asList("admins", "unknown"), true));
+        assertEquals(2, index.count(Arrays.asList("admins", "unknown"), false));
+
+        // in the order the members were first indexed
+        assertEquals(Arrays.asList("a", "b", "d"), index.members(Collections.singleton("staff"), false, 0, 10));
+        assertEquals(Arrays.asList("b", "d"), index.members(Collections.singleton("staff"), false, 1, 10));
+        assertEquals(Arrays.asList("a"), index.members(Collections.singleton("staff"), false, 0, 1));
+        assertEquals(Arrays.asList("a", "d"), index.members(Arrays.asList("staff", "admins"), true, 0, 10));
+        assertTrue(index.isMember("d", "admins"));
+        assertFalse(index.isMember("c", "staff"));
+    }
+
+    @Test
+    public void updatesAndRemovalsLeaveGroups() {
+        index.add(user("a", "admins", "staff"));
+        index.add(user("b", "staff"));
+        index.add(user("a", "staff"));
+        assertFalse(index.isMember("a", "admins"));
+        assertEquals(0, index.count(Collections.singleton("admins"), false));
+        assertEquals(Collections.emptyList(), index.members(Collections.singleton("admins"), false, 0, 10));
+
+        index.remove("a");
+        assertFalse(index.isMember("a", "staff"));
+        assertEquals(Arrays.asList("b"), index.members(Collections.singleton("staff"), false, 0, 10));
+
+        // a newcomer takes the freed ordinal, and with it the place of the removed member
+        index.add(user("c", "staff"));
+        assertEquals(Arrays.asList("c", "b"), index.members(Collections.singleton("staff"), false, 0, 10));
+
+        index.add(user("b"));
+        index.remove("c");
+        index.remove("unknown");
+        assertEquals(0, index.count(Collections.singleton("staff"), false));
+        assertFalse(index.isMember("b", "staff"));
+    }
+
+    @Test
+    public void largeGroupsPageInOrdinalOrder() {
+        int userCount = 3 * CompressedBitmap.ARRAY_MAX;
+        for (int i = 0; i < userCount; i++) {
+            index.add(i % 3 == 0 ? user("user" + i, "all", "thirds") : user("user" + i, "all"));
+        }
+        assertEquals(userCount, index.count(Collections.singleton("all"), false));
+        assertEquals(CompressedBitmap.ARRAY_MAX, index.count(Arrays.asList("all", "thirds"), true));
+        assertEquals(Arrays.asList("user9000", "user9001"), index.members(Collections.singleton("all"), false, 9000, 2));
+        assertEquals(Arrays.asList("user9000", "user9003"), index.members(Arrays.asList("all", "thirds"), true, 3000, 2));
+
+        for (int i = 0; i < userCount; i += 2) index.remove("user" + i);
+        assertEquals(userCount / 2, index.count(Collections.singleton("all"), false));
+        assertEquals(Arrays.asList("user9001", "user9003"), index.members(Collections.singleton("all"), false, 4500, 2));
+    }
+
+    private static User user(String username, String... groups) {
+        User user = new User();
+        user.setUsername(username);
+        user.setGroups(Arrays.asList(groups));
+        return user;
+    }
+}
@@ -0,0 +1,45 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashUtilTest {
+
+    @After
+    public void tearDown() {
+        HashUtil.configure(Pbkdf2PasswordHasher.ALGORITHM, Pbkdf2PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    @Test
+    public void verifiesWithTheStoredParameters() {
+        HashUtil.configure(Sha256PasswordHasher.ALGORITHM, 10);
+        String sha256 = HashUtil.hashString("secret");
+        HashUtil.configure(Pbkdf2PasswordHasher.ALGORITHM, 100);
+        String pbkdf2 = HashUtil.hashString("secret");
+
+        assertTrue(HashUtil.isValid("secret", sha256));
+        assertTrue(HashUtil.isValid("secret", pbkdf2));
+        assertFalse(HashUtil.isValid("Secret", pbkdf2));
+        assertNotEquals(pbkdf2, HashUtil.hashString("secret")); // salted per value
+    }
+
+    @Test
+    public void flagsHashesWeakerThanConfigured() {
+        HashUtil.configure(Pbkdf2PasswordHasher.ALGORITHM, 100);
+        String hash = HashUtil.hashString("secret");
+        assertFalse(HashUtil.needsRehash(hash));
+        HashUtil.configure(Pbkdf2PasswordHasher.ALGORITHM, 200);
+        assertTrue(HashUtil.needsRehash(hash));
+        HashUtil.configure(Sha256PasswordHasher.ALGORITHM, 200);
+        assertTrue(HashUtil.needsRehash(hash));
+    }
+
+    @Test
+    public void rejectsHexHashesOfEarlierVersions() {
+        assertFalse(HashUtil.isValid("secret", "2bb80d537b1da3e38bd30361aa855686bde0eacd7162fef6a25fe97bf527a25b"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeywordIndexTest {
+
+    private final Map<String, User> users = new HashMap<>();
+    private final KeywordIndex index = new KeywordIndex(users::get);
+
+    @Test
+    public void findsKeywordsOfAnyLength() {
+        put("jane.doe", "Jane", "Doe");
+        put("john.smith", "John", "Smith");
+        put("ab", null, null);
+
+        assertEquals(Arrays.asList("ab", "jane.doe", "john.smith"), search(""));
+        assertEquals(Arrays.asList("jane.doe", "john.smith"), search("J"));
+        assertEquals(Arrays.asList("ab"), search("ab"));
+        assertEquals(Arrays.asList("jane.doe"), search("do"));
+        assertEquals(Arrays.asList("john.smith"), search("smi"));
+        assertEquals(Arrays.asList("john.smith"), search("SMITH"));
+        assertEquals(Collections.emptyList(), search("doej")); // does not span fields
+        assertEquals(Collections.emptyList(), search("x"));
+    }
+
+    @Test
+    public void updatesAndRemovalsDropStaleGrams() {
+        put("jane", "Jane", "Doe");
+        put("jane", "Jane", "Roe");
+        assertEquals(Collections.emptyList(), search("do"));
+        assertEquals(Collections.emptyList(), search("doe"));
+        assertEquals(Arrays.asList("jane"), search("roe"));
+
+        User previous = users.remove("jane");
+        index.remove(previous);
+        assertEquals(Collections.emptyList(), search(""));
+        assertEquals(Collections.emptyList(), search("j"));
+    }
+
+    @Test
+    public void matchesScanUnderRandomChanges() {
+        Random random = new Random(7);
+        for (int step = 0; step < 5000; step++) {
+            String username = "u" + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                User previous = users.remove(username);
+                if (previous != null) index.remove(previous);
+            } else {
+                put(username, word(random), random.nextBoolean() ? word(random) : null);
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            String keyword = word(random).substring(0, 1 + random.nextInt(4));
+            List<String> expected = new ArrayList<>();
+            for (User user : users.values()) {
+                for (String field : new String[]{user.getUsername(), user.getFirstName(), user.getLastName()}) {
+                    if (field != null && field.contains(keyword)) {
+                        expected.add(user.getUsername());
+                        break;
+                    }
+                }
+            }
+            Collections.sort(expected);
+            assertEquals(keyword, expected, search(keyword));
+        }
+    }
+
+    private void put(String username, String firstName, String lastName) {
+        User user = new User();
+        user.setUsername(username);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        index.add(users.put(username, user), user);
+    }
+
+    private List<String> search(String keyword) {
+        List<String> hits = index.search(keyword);
+        Collections.sort(hits);
+        return hits;
+    }
+
+    private static String word(Random random) {
+        char[] letters = new char[4 + random.nextInt(4)];
+        for (int i = 0; i < letters.length; i++) letters[i] = (char) ('a' + random.nextInt(4));
+        return new String(letters);
+    }
+}
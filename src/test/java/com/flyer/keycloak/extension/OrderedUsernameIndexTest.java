@@ -0,0 +1,65 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedUsernameIndexTest {
+
+    @Test
+    public void matchesSortedSetUnderRandomInsertsAndRemovals() {
+        OrderedUsernameIndex index = new OrderedUsernameIndex();
+        TreeSet<String> expected = new TreeSet<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 50000; step++) {
+            String username = "user" + random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(username), index.remove(username));
+            } else {
+                assertEquals(expected.add(username), index.add(username));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+
+        List<String> all = new ArrayList<>(expected);
+        assertEquals(all, index.range(0, Integer.MAX_VALUE));
+        for (int from = 0; from < all.size(); from += 997) {
+            assertEquals(all.subList(from, Math.min(all.size(), from + 25)), index.range(from, 25));
+            assertEquals(from, index.rank(all.get(from)));
+            assertEquals(from + 1, index.rank(all.get(from) + "\u0000")); // between two usernames
+        }
+        assertEquals(all.size(), index.rank("zzz"));
+        assertEquals(0, index.rank(""));
+    }
+
+    @Test
+    public void rangeOutsideTheIndexIsEmpty() {
+        OrderedUsernameIndex index = new OrderedUsernameIndex();
+        assertTrue(index.range(0, 10).isEmpty());
+        index.add("a");
+        assertTrue(index.range(1, 10).isEmpty());
+        assertTrue(index.range(-1, Integer.MAX_VALUE).isEmpty());
+        assertTrue(index.range(0, 0).isEmpty());
+        assertFalse(index.add("a"));
+        assertTrue(index.remove("a"));
+        assertFalse(index.remove("a"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void smallestSelectsInOrder() {
+        List<String> usernames = Arrays.asList("d", "a", "e", "c", "b");
+        assertEquals(Arrays.asList("a", "b", "c"), OrderedUsernameIndex.smallest(usernames, 3));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), OrderedUsernameIndex.smallest(usernames, 10));
+        assertEquals(Collections.emptyList(), OrderedUsernameIndex.smallest(usernames, 0));
+    }
+}
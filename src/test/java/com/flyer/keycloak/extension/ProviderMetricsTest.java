@@ -0,0 +1,53 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderMetricsTest {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private Path directory;
+    private ShardedUserRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("provider-metrics");
+        repository = new ShardedUserRepository(directory.resolve("users.json"), 1, SnapshotFormat.JSON_LINES, true,
+                FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL, DurabilityPolicy.SYNC, UserStore.Type.MAP, ClusterPolicy.STANDALONE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void replacedMetricsLeaveTheirSuccessorRegistered() throws Exception {
+        ObjectName name = new ObjectName(ProviderMetrics.DOMAIN + ":type=FileUserStorage,component="
+                + ObjectName.quote("metrics-component") + ",name=getUserByUsername");
+        ProviderMetrics retired = new ProviderMetrics(), current = new ProviderMetrics();
+        retired.register("metrics-component", repository, new UserAdapterCache(10, 60), new UserChangeFeed(10), 0);
+        current.register("metrics-component", repository, new UserAdapterCache(10, 60), new UserChangeFeed(10), 0);
+        current.record(ProviderMetrics.Operation.GET_USER_BY_USERNAME, System.nanoTime());
+
+        retired.unregister();
+        assertTrue(server.isRegistered(name));
+        assertEquals(1L, server.getAttribute(name, "Count"));
+
+        current.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,139 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(Parameterized.class)
+public class ShardedUserRepositoryTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<UserStore.Type> storeTypes() {
+        return Arrays.asList(UserStore.Type.values());
+    }
+
+    @Parameterized.Parameter
+    public UserStore.Type storeType;
+
+    private Path directory;
+    private ShardedUserRepository repository;
+    private final TreeSet<String> usernames = new TreeSet<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sharded-repository");
+        repository = new ShardedUserRepository(directory.resolve("users.json"), 4, SnapshotFormat.JSON_LINES, true,
+                FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL, new DurabilityPolicy(DurabilityPolicy.Mode.ON_SHUTDOWN,
+                DurabilityPolicy.DEFAULT_MAX_FLUSH_INTERVAL_MILLIS, DurabilityPolicy.DEFAULT_MAX_PENDING_WRITES),
+                storeType, ClusterPolicy.STANDALONE);
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            User user = new User();
+            user.setUsername("user" + random.nextInt(100000));
+            user.setFirstName(i % 3 == 0 ? "Anna" : "Bob");
+            if (usernames.add(user.getUsername())) repository.insertUser(user);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    private static List<String> names(List<User> users) {
+        return users.stream().map(User::getUsername).collect(Collectors.toList());
+    }
+
+    @Test
+    public void pagesMatchTheOrderOverAllShards() {
+        List<String> all = new ArrayList<>(usernames);
+        for (int first : new int[]{0, 1, 17, 499, 500, 1234, all.size() - 3, all.size(), all.size() + 10}) {
+            List<String> expected = all.subList(Math.min(first, all.size()), Math.min(all.size(), first + 20));
+            assertEquals("page at " + first, expected, names(repository.getUsers(first, 20)));
+        }
+        assertEquals(all, names(repository.getUsers(0, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void pagesFollowRemovals() {
+        for (String username : new ArrayList<>(usernames.headSet("user5"))) {
+            repository.removeUser(username);
+            usernames.remove(username);
+        }
+        List<String> all = new ArrayList<>(usernames);
+        assertEquals(all.subList(10, 40), names(repository.getUsers(10, 30)));
+    }
+
+    @Test
+    public void keywordPagesMatchTheOrderOfAllHits() {
+        List<String> hits = new ArrayList<>();
+        for (String username : usernames) {
+            if (repository.getUser(username).getFirstName().equals("Anna")) hits.add(username);
+        }
+        for (int first : new int[]{0, 33, hits.size() - 5, hits.size()}) {
+            List<String> expected = hits.subList(first, Math.min(hits.size(), first + 25));
+            assertEquals("page at " + first, expected, names(repository.findUserByKeyword("anna", first, 25)));
+        }
+    }
+
+    @Test
+    public void renameMovesUsersWithinAndAcrossShards() {
+        List<String> all = new ArrayList<>(usernames);
+        int renamed = 0;
+        for (String username : all.subList(0, 50)) {
+            String newUsername = "renamed-" + username;
+            User user = repository.renameUser(username, newUsername, current -> {
+                current.setUsername(newUsername);
+                current.setLastName("Renamed");
+                return current;
+            });
+            assertEquals(newUsername, user.getUsername());
+            assertNull(repository.getUser(username));
+            assertEquals("Renamed", repository.getUser(newUsername).getLastName());
+            usernames.remove(username);
+            usernames.add(newUsername);
+            renamed++;
+        }
+        assertEquals(50, renamed);
+        assertEquals(new ArrayList<>(usernames), names(repository.getUsers(0, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void renameToTakenUsernameChangesNothing() {
+        String first = usernames.first(), last = usernames.last();
+        assertNull(repository.renameUser(first, last, current -> {
+            current.setUsername(last);
+            return current;
+        }));
+        assertNotNull(repository.getUser(first));
+        assertEquals(usernames.size(), repository.getUserCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void unreadableFileFailsToOpen() throws IOException {
+        Path file = directory.resolve("corrupt.json");
+        Files.write(file, "[{\"username\": \"jane\", ".getBytes(StandardCharsets.UTF_8));
+        new ShardedUserRepository(file, 1, SnapshotFormat.JSON, true, FileUserRepository.DEFAULT_SNAPSHOT_INTERVAL,
+                new DurabilityPolicy(DurabilityPolicy.Mode.SYNC_FSYNC, DurabilityPolicy.DEFAULT_MAX_FLUSH_INTERVAL_MILLIS,
+                        DurabilityPolicy.DEFAULT_MAX_PENDING_WRITES), storeType, ClusterPolicy.STANDALONE);
+    }
+}
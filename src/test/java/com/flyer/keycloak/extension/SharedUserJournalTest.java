@@ -0,0 +1,111 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Two repositories on the same files, standing in for two nodes
+ */
+public class SharedUserJournalTest {
+
+    private static final String USERNAME = "jane@example.com";
+
+    private Path directory;
+    private FileUserRepository first;
+    private FileUserRepository second;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("shared-journal");
+        first = open();
+        first.insertUser(new User("Jane", "Doe", USERNAME, "hello"));
+        first.persistUserDataToFile();
+        second = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        first.close();
+        second.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    private FileUserRepository open() throws IOException {
+        return new FileUserRepository(directory.resolve("users.json").toString(), true, 50,
+                SnapshotFormat.JSON_LINES, UserStore.Type.MAP, true);
+    }
+
+    @Test
+    public void mergesOntoChangesOfTheOtherNode() throws Exception {
+        ProviderMetrics metrics = new ProviderMetrics();
+        FileTransaction onFirst = new FileTransaction(first, metrics);
+        onFirst.begin();
+        onFirst.edit(first.getUser(USERNAME)).set(FileTransaction.Field.FIRST_NAME, "Janet");
+        FileTransaction onSecond = new FileTransaction(second, metrics);
+        onSecond.begin();
+        onSecond.edit(second.getUser(USERNAME)).set(FileTransaction.Field.LAST_NAME, "Smith");
+        onFirst.commit();
+        onSecond.commit(); // the second node has not polled, its copy still has the old first name
+
+        first.pollChanges();
+        for (FileUserRepository node : new FileUserRepository[]{first, second}) {
+            assertEquals("Janet", node.getUser(USERNAME).getFirstName());
+            assertEquals("Smith", node.getUser(USERNAME).getLastName());
+        }
+    }
+
+    @Test
+    public void concurrentCommitsOnBothNodesKeepEachOthersChanges() throws Exception {
+        ProviderMetrics metrics = new ProviderMetrics();
+        int commits = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        FileUserRepository[] nodes = {first, second, first, second};
+        for (int i = 0; i < nodes.length; i++) {
+            FileUserRepository node = nodes[i];
+            String attribute = "attribute-" + i;
+            writers.add(executor.submit(() -> {
+                for (int commit = 1; commit <= commits; commit++) {
+                    FileTransaction transaction = new FileTransaction(node, metrics);
+                    transaction.begin();
+                    transaction.edit(node.getUser(USERNAME))
+                            .setAttribute(attribute, Collections.singletonList(String.valueOf(commit)));
+                    transaction.commit();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) writer.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        first.pollChanges();
+        second.pollChanges();
+        for (FileUserRepository node : new FileUserRepository[]{first, second}) {
+            for (int i = 0; i < nodes.length; i++) {
+                assertEquals(Collections.singletonList(String.valueOf(commits)), node.getUser(USERNAME).getAttribute("attribute-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void removalReachesTheOtherNode() throws IOException {
+        first.removeUser(USERNAME);
+        second.pollChanges();
+        assertNull(second.getUser(USERNAME));
+    }
+}
@@ -0,0 +1,86 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class UserBulkTransferTest {
+
+    private Path directory;
+    private FileUserRepository repository;
+    private UserBulkTransfer transfer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("bulk-transfer");
+        repository = new FileUserRepository(directory.resolve("users.json").toString(), false, 1000,
+                SnapshotFormat.JSON, UserStore.Type.MAP, false);
+        transfer = new UserBulkTransfer(2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transfer.close();
+        repository.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void csvRoundTripKeepsLineBreaksQuotesAndCommas() throws IOException {
+        User jane = new User();
+        jane.setUsername("jane");
+        jane.setFirstName("Jane, \"JJ\"");
+        jane.setFavouriteLine("first line\nsecond line\n\nafter a blank line");
+        jane.setPasswordHash("sha256$1$c2FsdA$aGFzaA");
+        jane.setAttributes(Collections.singletonMap("motto", Arrays.asList("one\ntwo", "three")));
+        jane.setGroups(Arrays.asList("group-1", "group-2"));
+        User john = new User();
+        john.setUsername("john");
+        john.setLastName("Doe");
+        repository.bulkLoad(Arrays.asList(jane, john));
+
+        Path csv = directory.resolve("users.csv");
+        assertEquals(2, transfer.exportUsers(repository, csv));
+        Map<String, User> read = byUsername(transfer.readUsers(csv));
+
+        assertEquals(2, read.size());
+        for (User user : Arrays.asList(jane, john)) {
+            assertEquals(user.fingerprint(), read.get(user.getUsername()).fingerprint());
+        }
+        assertEquals(jane.getFavouriteLine(), read.get("jane").getFavouriteLine());
+    }
+
+    @Test
+    public void malformedRecordIsSkippedWithoutLosingTheNextOnes() throws IOException {
+        Path csv = directory.resolve("input.csv");
+        List<String> lines = Arrays.asList(
+                "username,firstName,favouriteLine",
+                "anna,Anna,\"spans",
+                "two lines\"",
+                "bob,Bob",
+                "carl,Carl,plain");
+        Files.write(csv, lines, StandardCharsets.UTF_8);
+
+        Map<String, User> read = byUsername(transfer.readUsers(csv));
+        assertEquals(Arrays.asList("anna", "carl"), read.keySet().stream().sorted().collect(Collectors.toList()));
+        assertEquals("spans\ntwo lines", read.get("anna").getFavouriteLine());
+    }
+
+    private static Map<String, User> byUsername(Collection<User> users) {
+        return users.stream().collect(Collectors.toMap(User::getUsername, Function.identity()));
+    }
+}
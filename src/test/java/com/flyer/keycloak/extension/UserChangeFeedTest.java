@@ -0,0 +1,75 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UserChangeFeedTest {
+
+    @Test
+    public void repeatedChangesKeepTheirOwnSequenceNumbers() {
+        UserChangeFeed feed = new UserChangeFeed(10);
+        assertEquals(0, feed.getSequence());
+        assertEquals(Collections.emptyList(), feed.changesSince(0, 10));
+
+        for (String username : new String[]{"a", "b", "a", "a"}) feed.userChanged(username);
+        assertEquals(4, feed.getSequence());
+        // one entry per change, so a reader advancing by the batch size never skips or repeats a change;
+        // syncSince collapses the repeats within a batch
+        assertEquals(Arrays.asList("a", "b", "a", "a"), feed.changesSince(0, 10));
+        assertEquals(Arrays.asList("a", "b"), feed.changesSince(0, 2));
+        assertEquals(Arrays.asList("a", "a"), feed.changesSince(2, 10));
+        assertEquals(Collections.emptyList(), feed.changesSince(4, 10));
+    }
+
+    @Test
+    public void wrappedRingReportsDroppedChanges() {
+        UserChangeFeed feed = new UserChangeFeed(4);
+        for (int i = 1; i <= 6; i++) feed.userChanged("user" + i);
+        assertEquals(6, feed.getSequence());
+        assertEquals(Arrays.asList("user3", "user4", "user5", "user6"), feed.changesSince(2, 10));
+        assertEquals(Arrays.asList("user6"), feed.changesSince(5, 10));
+        assertNull(feed.changesSince(1, 10));
+        assertNull(feed.changesSince(0, 10));
+
+        for (int i = 7; i <= 13; i++) feed.userChanged("user" + i);
+        assertEquals(Arrays.asList("user10", "user11", "user12", "user13"), feed.changesSince(9, 10));
+        assertNull(feed.changesSince(8, 10));
+    }
+
+    @Test
+    public void timesMapToTheSequenceBeforeTheFirstChangeMadeSince() throws InterruptedException {
+        long beforeFeed = System.currentTimeMillis() - 1;
+        UserChangeFeed feed = new UserChangeFeed(2);
+        long beforeA = tick();
+        feed.userChanged("a");
+        long beforeB = tick();
+        feed.userChanged("b");
+        long afterB = tick();
+
+        assertEquals(-1, feed.sequenceAt(beforeFeed)); // changes before the feed existed are unknown
+        assertEquals(0, feed.sequenceAt(beforeA));
+        assertEquals(1, feed.sequenceAt(beforeB));
+        assertEquals(2, feed.sequenceAt(afterB));
+        assertEquals(2, feed.sequenceAt(Long.MAX_VALUE));
+
+        long beforeC = tick();
+        feed.userChanged("c"); // drops a
+        assertEquals(-1, feed.sequenceAt(beforeA));
+        assertEquals(1, feed.sequenceAt(beforeB));
+        assertEquals(2, feed.sequenceAt(beforeC));
+        assertEquals(Arrays.asList("b", "c"), feed.changesSince(feed.sequenceAt(beforeB), 10));
+    }
+
+    // a time strictly between the changes made before and after the call
+    private static long tick() throws InterruptedException {
+        Thread.sleep(5);
+        long now = System.currentTimeMillis();
+        Thread.sleep(5);
+        return now;
+    }
+}
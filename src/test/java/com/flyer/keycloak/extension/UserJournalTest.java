@@ -0,0 +1,143 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserJournalTest {
+
+    private Path directory;
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("user-journal");
+        path = directory.resolve("users.json.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    private List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        UserJournal journal = new UserJournal(path.toString());
+        journal.open((operation, payload) -> records.add(operation + " " + new String(payload, StandardCharsets.UTF_8)));
+        journal.close();
+        return records;
+    }
+
+    private void append(String... payloads) throws IOException {
+        UserJournal journal = new UserJournal(path.toString());
+        journal.open((operation, payload) -> { });
+        for (String payload : payloads) journal.append(UserJournal.Operation.UPDATE, payload.getBytes(StandardCharsets.UTF_8));
+        journal.sync();
+        journal.close();
+    }
+
+    @Test
+    public void replaysRecordsInWriteOrder() throws IOException {
+        append("a", "b");
+        append("c");
+        assertEquals(Arrays.asList("UPDATE a", "UPDATE b", "UPDATE c"), replay());
+    }
+
+    @Test
+    public void dropsTornTailRecord() throws IOException {
+        append("first", "second");
+        long intact = Files.size(path);
+        append("third");
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(Files.size(path) - 2); // crash in the middle of writing the last record
+        }
+
+        assertEquals(Arrays.asList("UPDATE first", "UPDATE second"), replay());
+        assertEquals(intact, Files.size(path));
+        append("fourth");
+        assertEquals(Arrays.asList("UPDATE first", "UPDATE second", "UPDATE fourth"), replay());
+    }
+
+    @Test
+    public void dropsTailRecordFailingItsChecksum() throws IOException {
+        append("first", "second");
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write('x');
+        }
+        assertEquals(Arrays.asList("UPDATE first"), replay());
+    }
+
+    @Test
+    public void replaysSealedSegmentBeforeActiveLog() throws IOException {
+        UserJournal journal = new UserJournal(path.toString());
+        journal.open((operation, payload) -> { });
+        journal.append(UserJournal.Operation.INSERT, "sealed".getBytes(StandardCharsets.UTF_8));
+        journal.rotate();
+        journal.append(UserJournal.Operation.REMOVE, "active".getBytes(StandardCharsets.UTF_8));
+        journal.sync();
+        // no snapshot written and no close: a crash during compaction
+
+        assertEquals(Arrays.asList("INSERT sealed", "REMOVE active"), replay());
+        journal.close();
+    }
+
+    @Test
+    public void refusesToRotateOverSealedSegment() throws IOException {
+        UserJournal journal = new UserJournal(path.toString());
+        journal.open((operation, payload) -> { });
+        journal.append(UserJournal.Operation.INSERT, "sealed".getBytes(StandardCharsets.UTF_8));
+        journal.rotate();
+        journal.append(UserJournal.Operation.INSERT, "active".getBytes(StandardCharsets.UTF_8));
+        try {
+            journal.rotate();
+            fail("rotated over a sealed segment");
+        } catch (IOException expected) {
+            // the sealed segment must first be in a snapshot
+        }
+        journal.deleteSealed();
+        journal.rotate();
+        journal.close();
+        assertEquals(Arrays.asList("INSERT active"), replay());
+    }
+
+    @Test
+    public void repositoryReplaysJournalAfterCrash() throws IOException {
+        String file = directory.resolve("users.json").toString();
+        FileUserRepository repository = new FileUserRepository(file, true, 1000, SnapshotFormat.JSON_LINES,
+                UserStore.Type.MAP, false);
+        repository.insertUser(new User("Jane", "Doe", "jane@example.com", "hello"));
+        repository.insertUser(new User("John", "Doe", "john@example.com", "hi"));
+        repository.updateUser("jane@example.com", user -> {
+            user.setFirstName("Janet");
+            return user;
+        });
+        repository.removeUser("john@example.com");
+        repository.persistUserDataToFile(); // forces the journal; the snapshot is still empty
+        // no close: the process dies here
+
+        FileUserRepository reopened = new FileUserRepository(file, true, 1000, SnapshotFormat.JSON_LINES,
+                UserStore.Type.MAP, false);
+        assertNotNull(reopened.getUser("jane@example.com"));
+        assertEquals("Janet", reopened.getUser("jane@example.com").getFirstName());
+        assertNull(reopened.getUser("john@example.com"));
+        assertTrue(reopened.getJournalRecordCount() > 0);
+        reopened.close();
+        repository.close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.flyer.keycloak.extension;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserPersisterTest {
+
+    @Test
+    public void backpressureReturnsOnlyOnceTheWritesAreFlushed() throws Exception {
+        AtomicLong writes = new AtomicLong();
+        AtomicLong flushed = new AtomicLong(); // writes made before the last completed flush started
+        DurabilityPolicy policy = new DurabilityPolicy(DurabilityPolicy.Mode.WRITE_BEHIND, 5, 1);
+        UserPersister persister = new UserPersister("test", policy, () -> {
+            long upTo = writes.get();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            flushed.accumulateAndGet(upTo, Math::max);
+        }, () -> { }, () -> 2); // every request is over the limit and waits
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writers.add(executor.submit(() -> {
+                for (int j = 0; j < 200; j++) {
+                    long write = writes.incrementAndGet();
+                    persister.requestFlush();
+                    assertTrue("write " + write + " not flushed", flushed.get() >= write);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) writer.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+        persister.close();
+    }
+
+    @Test
+    public void backpressureReportsFailedFlush() throws IOException {
+        DurabilityPolicy policy = new DurabilityPolicy(DurabilityPolicy.Mode.ON_SHUTDOWN, 1000, 1);
+        UserPersister persister = new UserPersister("failing", policy, () -> {
+            throw new IOException("disk full");
+        }, () -> { }, () -> 2);
+        try {
+            persister.requestFlush();
+            fail("flush failure not reported");
+        } catch (IOException expected) {
+            // the writer learns that its changes are not durable
+        }
+    }
+}